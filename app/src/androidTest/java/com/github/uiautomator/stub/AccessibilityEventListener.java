@@ -3,16 +3,30 @@ package com.github.uiautomator.stub;
 import android.app.Notification;
 import android.app.UiAutomation;
 import android.os.Parcelable;
-import androidx.test.InstrumentationRegistry;
+import android.os.SystemClock;
 import androidx.test.uiautomator.UiDevice;
 import android.view.accessibility.AccessibilityEvent;
 
+import java.lang.reflect.Field;
 import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Used to skip apk auto install && permission popups
  * Called in method: setPermissionPatterns
  * <p>
+ * It is installed once as the OnAccessibilityEventListener of the UiAutomation, other
+ * components receive the events by {@link #addSubscriber}. The listener UiAutomator had
+ * installed (its QueryController tracks the last traversed text and the last activity with it)
+ * keeps receiving every event before the subscribers. When that listener can not be read, ours
+ * is not installed rather than replacing it: UiAutomator keeps working, but the subscribers and
+ * the toast history get no event.
+ * <p>
+ * Toasts are recorded in a {@link ToastHistory} while toast capture is enabled, while
+ * someone needs them ({@link #acquireToasts}), and for TOAST_READER_IDLE after each read of the
+ * history ({@link #keepToasts}), so that a client polling in a loop misses no toast between two
+ * polls. Recording stops once nobody has read the history for that long.
+ * <p>
  * Created by hzsunshx on 2018/3/7.
  */
 
@@ -24,11 +38,54 @@ public class AccessibilityEventListener implements UiAutomation.OnAccessibilityE
     private HashSet<String> watchers;
     private static AccessibilityEventListener instance;
     private UiDevice device;
+    private final UiAutomation uiAutomation;
+    private final CopyOnWriteArrayList<UiAutomation.OnAccessibilityEventListener> subscribers = new CopyOnWriteArrayList<>();
+    private final ToastHistory toastHistory = new ToastHistory();
+    private boolean toastEnabled = false;
+    private int toastUsers = 0;
+    private static final long TOAST_READER_IDLE = 30000;
+    private volatile long toastsKeptUntil = 0;
+    private volatile boolean recordingToasts = false;
+    private final UiAutomation.OnAccessibilityEventListener previous;
 
-    public AccessibilityEventListener(UiDevice device, HashSet<String> watchers) {
+    public AccessibilityEventListener(UiAutomation uiAutomation, UiDevice device, HashSet<String> watchers) {
+        this.uiAutomation = uiAutomation;
         this.device = device;
         this.watchers = watchers;
         AccessibilityEventListener.instance = this;
+        // default uiAutomation serviceInfo.eventTypes is -1
+        // this might means watch all eventTypes
+        UiAutomation.OnAccessibilityEventListener installed = null;
+        boolean readable;
+        try {
+            installed = getInstalledListener(uiAutomation);
+            readable = true;
+        } catch (Exception e) {
+            Log.e("UiAutomation accessibility event listener can not be read, not chaining it: "
+                    + "watchers, toasts and event waits get no accessibility events", e);
+            readable = false;
+        }
+        this.previous = installed;
+        if (readable) {
+            uiAutomation.setOnAccessibilityEventListener(this);
+        }
+    }
+
+    /**
+     * UiAutomation has no getter for its listener, this reads a non-SDK field which newer
+     * releases may block.
+     *
+     * @return the listener installed before us, null if none
+     */
+    private static UiAutomation.OnAccessibilityEventListener getInstalledListener(UiAutomation uiAutomation)
+            throws ReflectiveOperationException {
+        Field field = UiAutomation.class.getDeclaredField("mOnAccessibilityEventListener");
+        field.setAccessible(true);
+        Object listener = field.get(uiAutomation);
+        if (listener instanceof AccessibilityEventListener) {
+            return ((AccessibilityEventListener) listener).previous;
+        }
+        return (UiAutomation.OnAccessibilityEventListener) listener;
     }
 
     public static AccessibilityEventListener getInstance() {
@@ -38,20 +95,88 @@ public class AccessibilityEventListener implements UiAutomation.OnAccessibilityE
         return instance;
     }
 
+    public synchronized void setToastEnabled(boolean enabled) {
+        this.toastEnabled = enabled;
+        updateToastRecording();
+    }
+
+    ToastHistory getToastHistory() {
+        return toastHistory;
+    }
+
+    /**
+     * Record the toasts until {@link #releaseToasts}, even if toast capture is not enabled.
+     */
+    public synchronized void acquireToasts() {
+        toastUsers++;
+        updateToastRecording();
+    }
+
+    public synchronized void releaseToasts() {
+        toastUsers = Math.max(0, toastUsers - 1);
+        updateToastRecording();
+    }
+
+    /**
+     * Record the toasts for TOAST_READER_IDLE more, called after each read of the history: the
+     * client will ask for the toasts shown until its next poll.
+     */
+    public void keepToasts() {
+        toastsKeptUntil = SystemClock.uptimeMillis() + TOAST_READER_IDLE;
+    }
+
+    public void addSubscriber(UiAutomation.OnAccessibilityEventListener subscriber) {
+        subscribers.addIfAbsent(subscriber);
+    }
+
+    public void removeSubscriber(UiAutomation.OnAccessibilityEventListener subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    private void updateToastRecording() {
+        recordingToasts = toastEnabled || toastUsers > 0;
+    }
+
+    /**
+     * @return the text of the toast reported by the event, or null if the event is not a toast
+     */
+    static String getToastText(AccessibilityEvent event) {
+        if (event.getPackageName() == null || event.getEventType() != AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED) {
+            return null;
+        }
+        Parcelable parcelable = event.getParcelableData();
+        if (parcelable instanceof Notification || event.getText().size() == 0) { // without Notification is Toast
+            return null;
+        }
+        return "" + event.getText().get(0);
+    }
+
     @Override
     public void onAccessibilityEvent(final AccessibilityEvent event) {
-        if (event.getPackageName() == null) {
-            return;
-        } else if (event.getEventType() == AccessibilityEvent.TYPE_NOTIFICATION_STATE_CHANGED) {
-            Parcelable parcelable = event.getParcelableData();
-            if (!(parcelable instanceof Notification)) { // without Notification is Toast
-                String packageName = event.getPackageName().toString();
-                if (event.getText().size() > 0) {
-                    this.toastTime = System.currentTimeMillis();
-                    this.toastMessage = "" + event.getText().get(0);
-                    Log.d("Toast:" + toastMessage + " Pkg:" + packageName + " Time:" + toastTime);
-                }
+        if (previous != null) {
+            try {
+                previous.onAccessibilityEvent(event);
+            } catch (RuntimeException e) {
+                Log.e("UiAutomator accessibility event listener failed", e);
+            }
+        }
+        for (UiAutomation.OnAccessibilityEventListener subscriber : subscribers) {
+            try {
+                subscriber.onAccessibilityEvent(event);
+            } catch (RuntimeException e) {
+                Log.e("accessibility event subscriber failed", e);
             }
         }
+        if (!recordingToasts && SystemClock.uptimeMillis() >= toastsKeptUntil) {
+            return;
+        }
+        String text = getToastText(event);
+        if (text != null) {
+            String packageName = event.getPackageName().toString();
+            this.toastTime = System.currentTimeMillis();
+            this.toastMessage = text;
+            toastHistory.add(text, packageName, toastTime);
+            Log.d("Toast:" + toastMessage + " Pkg:" + packageName + " Time:" + toastTime);
+        }
     }
 }
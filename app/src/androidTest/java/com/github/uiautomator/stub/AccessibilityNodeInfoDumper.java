@@ -13,53 +13,285 @@ import android.view.accessibility.AccessibilityWindowInfo;
 import androidx.annotation.RequiresApi;
 import androidx.test.filters.SdkSuppress;
 import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.Configurator;
 import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObject;
+import androidx.test.uiautomator.UiObjectNotFoundException;
+import androidx.test.uiautomator.UiSelector;
 import androidx.test.uiautomator.util.Traces;
 import androidx.test.uiautomator.util.Traces.Section;
 
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class AccessibilityNodeInfoDumper {
 
     private static final String TAG = AccessibilityNodeInfoDumper.class.getSimpleName();
+    static final String FORMAT_XML = "xml";
+    static final String FORMAT_BINARY = "binary";
     private static final String[] NAF_EXCLUDED_CLASSES = new String[] {
             android.widget.GridView.class.getName(), android.widget.GridLayout.class.getName(),
             android.widget.ListView.class.getName(), android.widget.TableLayout.class.getName()
     };
 
+    private static final int MAX_PARALLEL_WINDOWS = 4;
+    private static final ThreadPoolExecutor WINDOW_POOL = new ThreadPoolExecutor(
+            MAX_PARALLEL_WINDOWS, MAX_PARALLEL_WINDOWS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "WindowDumper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        WINDOW_POOL.allowCoreThreadTimeOut(true);
+    }
+
+    // the attributes of a node, in the order of the xml dump
+    private static final String[] ATTRIBUTE_NAMES = new String[] {
+            "NAF", "text", "resource-id", "class", "package", "content-desc", "checkable", "checked",
+            "clickable", "enabled", "focusable", "focused", "scrollable", "long-clickable", "password",
+            "selected", "visible-to-user", "bounds", "drawing-order", "hint", "display-id"
+    };
+    static final int ATTR_NAF = 1;
+    static final int ATTR_TEXT = 1 << 1;
+    static final int ATTR_RESOURCE_ID = 1 << 2;
+    static final int ATTR_CLASS = 1 << 3;
+    static final int ATTR_PACKAGE = 1 << 4;
+    static final int ATTR_CONTENT_DESC = 1 << 5;
+    static final int ATTR_CHECKABLE = 1 << 6;
+    static final int ATTR_CHECKED = 1 << 7;
+    static final int ATTR_CLICKABLE = 1 << 8;
+    static final int ATTR_ENABLED = 1 << 9;
+    static final int ATTR_FOCUSABLE = 1 << 10;
+    static final int ATTR_FOCUSED = 1 << 11;
+    static final int ATTR_SCROLLABLE = 1 << 12;
+    static final int ATTR_LONG_CLICKABLE = 1 << 13;
+    static final int ATTR_PASSWORD = 1 << 14;
+    static final int ATTR_SELECTED = 1 << 15;
+    static final int ATTR_VISIBLE_TO_USER = 1 << 16;
+    static final int ATTR_BOUNDS = 1 << 17;
+    static final int ATTR_DRAWING_ORDER = 1 << 18;
+    static final int ATTR_HINT = 1 << 19;
+    static final int ATTR_DISPLAY_ID = 1 << 20;
+    static final int ALL_ATTRIBUTES = (1 << ATTRIBUTE_NAMES.length) - 1;
+
     private AccessibilityNodeInfoDumper() { }
 
     public static void dumpWindowHierarchy(UiDevice device, OutputStream out, int maxDepth) throws IOException {
+        dumpWindowHierarchy(device, new XmlHierarchyWriter(out, ALL_ATTRIBUTES), maxDepth, null);
+    }
+
+    /**
+     * Create the writer for a dump format.
+     *
+     * @param format {@link #FORMAT_XML} (also used when null) or {@link #FORMAT_BINARY}
+     * @throws IllegalArgumentException if the format is unknown
+     */
+    static HierarchyWriter newWriter(String format, OutputStream out) throws IOException {
+        return newWriter(format, out, ALL_ATTRIBUTES);
+    }
+
+    /**
+     * @param attributes the ATTR_* bits of the attributes to write, the others are not even read
+     *                   from the nodes
+     */
+    static HierarchyWriter newWriter(String format, OutputStream out, int attributes) throws IOException {
+        if (format == null || FORMAT_XML.equals(format)) {
+            return new XmlHierarchyWriter(out, attributes);
+        } else if (FORMAT_BINARY.equals(format)) {
+            return new CompactHierarchyWriter(out, attributes);
+        }
+        throw new IllegalArgumentException("Unknown hierarchy format: " + format);
+    }
+
+    /**
+     * @param names attribute names of the xml dump, null for all of them
+     * @return the ATTR_* bits of the attributes
+     * @throws IllegalArgumentException if a name is unknown
+     */
+    static int attributeMask(String[] names) {
+        if (names == null) {
+            return ALL_ATTRIBUTES;
+        }
+        int mask = 0;
+        for (String name : names) {
+            int i = Arrays.asList(ATTRIBUTE_NAMES).indexOf(name);
+            if (i < 0) {
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            }
+            mask |= 1 << i;
+        }
+        return mask;
+    }
+
+    static void dumpWindowHierarchy(UiDevice device, HierarchyWriter writer, int maxDepth) throws IOException {
+        dumpWindowHierarchy(device, writer, maxDepth, null);
+    }
+
+    /**
+     * Dump all the window roots. With several windows each one is walked and serialized on
+     * {@link #WINDOW_POOL} into its own buffer, since every getChild and most attribute reads are
+     * blocking binder calls, then the buffers are written in window order as soon as they are
+     * ready. With a node budget the windows are
+     * walked one after the other, so the budget goes to the first windows.
+     *
+     * @param options null for the default options
+     */
+    static void dumpWindowHierarchy(UiDevice device, HierarchyWriter writer, int maxDepth,
+            DumpOptions options) throws IOException {
+        long start = PhaseRecorder.start();
         try (Section ignored = Traces.trace("AccessibilityNodeInfoDumper.dumpWindowHierarchy")) {
-            XmlSerializer serializer = Xml.newSerializer();
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            serializer.setOutput(out, "UTF-8");
+            final Walk walk = new Walk(NodeTraversal.DUMP, options, device.getDisplayWidth(), device.getDisplayHeight());
+            List<AccessibilityNodeInfo> roots = new ArrayList<>();
+            for (AccessibilityNodeInfo root : getWindowRoots(device, PhaseRecorder.DUMP)) {
+                if (walk.acceptsPackage(root.getPackageName())) {
+                    roots.add(root);
+                }
+            }
+            long walkStart = PhaseRecorder.start();
+            TimedWriter timed = new TimedWriter(writer);
+            timed.startHierarchy(device.getDisplayRotation(), device.getDisplayWidth(), device.getDisplayHeight());
+            dumpRoots(roots, timed, maxDepth, walk);
+            walk.traversal.finish();
 
-            serializer.startDocument("UTF-8", true);
-            serializer.startTag("", "hierarchy"); // TODO(allenhair): Should we use a namespace?
-            serializer.attribute("", "rotation", Integer.toString(device.getDisplayRotation()));
+            timed.endHierarchy();
+            timed.record(PhaseRecorder.DUMP_WALK, PhaseRecorder.DUMP_SERIALIZE, walkStart);
+            PhaseRecorder.record(PhaseRecorder.DUMP, start, timed.nodes);
+        }
+    }
+
+    /**
+     * Dump the subtree of one node with the same options as a whole dump, the rest of the
+     * window is not walked.
+     *
+     * @param root   see {@link #findNode}
+     * @param options null for the default options, the package filter applies to the root
+     */
+    static void dumpSubtree(UiDevice device, AccessibilityNodeInfo root, HierarchyWriter writer, int maxDepth,
+            DumpOptions options) throws IOException {
+        long start = PhaseRecorder.start();
+        try (Section ignored = Traces.trace("AccessibilityNodeInfoDumper.dumpSubtree")) {
+            TimedWriter timed = new TimedWriter(writer);
+            timed.startHierarchy(device.getDisplayRotation(), device.getDisplayWidth(), device.getDisplayHeight());
 
-            for (AccessibilityNodeInfo root : getWindowRoots(device)) {
-                dumpNodeRec(root, serializer, 0, device.getDisplayWidth(),
-                            device.getDisplayHeight(), maxDepth);
+            Walk walk = new Walk(NodeTraversal.SUBTREE_DUMP, options, device.getDisplayWidth(), device.getDisplayHeight());
+            if (walk.acceptsPackage(root.getPackageName())) {
+                dumpNodeRec(root, timed, 0, walk, maxDepth);
             }
+            walk.traversal.finish();
 
-            serializer.endTag("", "hierarchy");
-            serializer.endDocument();
+            timed.endHierarchy();
+            timed.record(PhaseRecorder.SUBTREE_DUMP_WALK, PhaseRecorder.SUBTREE_DUMP_SERIALIZE, start);
+            PhaseRecorder.record(PhaseRecorder.SUBTREE_DUMP, start, timed.nodes);
+        }
+    }
+
+    /**
+     * Find the node of a selector the way UiObject does before each action, waiting up to the
+     * selector timeout of the Configurator.
+     *
+     * @return the node, to be recycled by the caller
+     * @throws UiObjectNotFoundException if no node matches
+     */
+    static AccessibilityNodeInfo findNode(UiSelector selector) throws UiObjectNotFoundException {
+        long start = PhaseRecorder.start();
+        AccessibilityNodeInfo node = new NodeLookup(selector).find(
+                Configurator.getInstance().getWaitForSelectorTimeout());
+        PhaseRecorder.record(PhaseRecorder.SELECTOR_FIND, start);
+        if (node == null) {
+            throw new UiObjectNotFoundException(selector.toString());
+        }
+        return node;
+    }
+
+    /**
+     * UiObject only gives its node to subclasses.
+     */
+    private static class NodeLookup extends UiObject {
+        @SuppressWarnings("deprecation")
+        NodeLookup(UiSelector selector) {
+            super(selector);
+        }
+
+        AccessibilityNodeInfo find(long timeout) {
+            return findAccessibilityNodeInfo(timeout);
+        }
+    }
+
+    private static void dumpRoots(List<AccessibilityNodeInfo> roots, final TimedWriter writer,
+            final int maxDepth, final Walk walk) throws IOException {
+        if (roots.size() <= 1 || walk.maxNodes > 0) {
+            for (AccessibilityNodeInfo root : roots) {
+                dumpNodeRec(root, writer, 0, walk, maxDepth);
+            }
+            return;
+        }
+        List<Future<WindowBuffer>> windows = new ArrayList<>();
+        for (final AccessibilityNodeInfo root : roots) {
+            windows.add(WINDOW_POOL.submit(new Callable<WindowBuffer>() {
+                @Override
+                public WindowBuffer call() throws IOException {
+                    WindowBuffer window = new WindowBuffer();
+                    window.writer = writer.newWindowWriter(window.bytes);
+                    dumpNodeRec(root, window.writer, 0, walk, maxDepth);
+                    window.writer.endHierarchy();
+                    return window;
+                }
+            }));
+        }
+        try {
+            for (Future<WindowBuffer> future : windows) {
+                WindowBuffer window = future.get();
+                writer.writeWindow(window.bytes.toByteArray(), window.bytes.size());
+                writer.add(window.writer);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("dump interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<WindowBuffer> window : windows) {
+                window.cancel(true);
+            }
         }
     }
 
-    static AccessibilityNodeInfo[] getWindowRoots(UiDevice device) {
+    /**
+     * @param operation {@link PhaseRecorder#DUMP} or {@link PhaseRecorder#SNAPSHOT}, the wait for
+     *                  idle and the window enumeration are recorded as phases of it
+     */
+    static AccessibilityNodeInfo[] getWindowRoots(UiDevice device, String operation) {
+        long start = PhaseRecorder.start();
         device.waitForIdle();
+        start = PhaseRecorder.record(operation + PhaseRecorder.WAIT_FOR_IDLE, start);
 
-        Set<AccessibilityNodeInfo> roots = new HashSet<>();
+        // in window order, so the dump is the same from one call to the next
+        Set<AccessibilityNodeInfo> roots = new LinkedHashSet<>();
         UiAutomation uiAutomation = InstrumentationRegistry.getInstrumentation().getUiAutomation();
 
         // Ensure the active window root is included.
@@ -80,6 +312,7 @@ class AccessibilityNodeInfoDumper {
                 roots.add(root);
             }
         }
+        PhaseRecorder.record(operation + PhaseRecorder.WINDOWS, start, roots.size());
         return roots.toArray(new AccessibilityNodeInfo[0]);
     }
 
@@ -100,64 +333,297 @@ class AccessibilityNodeInfoDumper {
         //return AccessibilityNodeInfoHelper.Api21Impl.getWindows(uiAutomation);
     }
 
-    private static void dumpNodeRec(AccessibilityNodeInfo node, XmlSerializer serializer,int index,
-            int width, int height, int maxDepth) throws IOException {
-        serializer.startTag("", "node");
-        if (!nafExcludedClass(node) && !nafCheck(node))
-            serializer.attribute("", "NAF", Boolean.toString(true));
-        serializer.attribute("", "index", Integer.toString(index));
-        try {
-            serializer.attribute("", "text", safeCharSeqToString(node.getText()));
-            serializer.attribute("", "resource-id", safeCharSeqToString(node.getViewIdResourceName()));
-            serializer.attribute("", "class", safeCharSeqToString(node.getClassName()));
-            serializer.attribute("", "package", safeCharSeqToString(node.getPackageName()));
-            serializer.attribute("", "content-desc", safeCharSeqToString(node.getContentDescription()));
-        } catch (IllegalArgumentException e) {
-            // java.lang.IllegalArgumentException: Illegal character (U+0)
-            // TODO: maybe the best way is to update safeCharSeqToString
-            e.printStackTrace();
-        }
-        serializer.attribute("", "checkable", Boolean.toString(node.isCheckable()));
-        serializer.attribute("", "checked", Boolean.toString(node.isChecked()));
-        serializer.attribute("", "clickable", Boolean.toString(node.isClickable()));
-        serializer.attribute("", "enabled", Boolean.toString(node.isEnabled()));
-        serializer.attribute("", "focusable", Boolean.toString(node.isFocusable()));
-        serializer.attribute("", "focused", Boolean.toString(node.isFocused()));
-        serializer.attribute("", "scrollable", Boolean.toString(node.isScrollable()));
-        serializer.attribute("", "long-clickable", Boolean.toString(node.isLongClickable()));
-        serializer.attribute("", "password", Boolean.toString(node.isPassword()));
-        serializer.attribute("", "selected", Boolean.toString(node.isSelected()));
-        serializer.attribute("", "visible-to-user", Boolean.toString(node.isVisibleToUser()));
-        serializer.attribute("", "bounds", AccessibilityNodeInfoHelper.getVisibleBoundsInScreen(
-                node, width, height, false).toShortString());
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            serializer.attribute("", "drawing-order",
-                    Integer.toString(Api24Impl.getDrawingOrder(node)));
-        }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            serializer.attribute("", "hint", safeCharSeqToString(Api26Impl.getHintText(node)));
-        }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            serializer.attribute("", "display-id",
-                    Integer.toString(Api30Impl.getDisplayId(node)));
-        }
+    private static void dumpNodeRec(AccessibilityNodeInfo node, HierarchyWriter writer, int index,
+            Walk walk, int maxDepth) throws IOException {
+        writer.startNode(node, index, walk.width, walk.height);
         if (maxDepth > 0) {
             int count = node.getChildCount();
             for (int i = 0; i < count; i++) {
-                AccessibilityNodeInfo child = node.getChild(i);
+                AccessibilityNodeInfo child = walk.traversal.getChild(node, i);
                 if (child != null) {
-                    if (child.isVisibleToUser()) {
-                        dumpNodeRec(child, serializer, i, width, height, maxDepth-1);
+                    if (walk.visibleOnly && !child.isVisibleToUser()) {
+                        Log.i(TAG, String.format("Skipping invisible child: %s", child));
+                    } else if (walk.skipEmptyLayouts && isEmptyLayout(child)) {
                         child.recycle();
+                    } else if (!walk.take()) {
+                        child.recycle();
+                        break;
                     } else {
-                        Log.i(TAG, String.format("Skipping invisible child: %s", child));
+                        dumpNodeRec(child, writer, i, walk, maxDepth-1);
+                        child.recycle();
                     }
                 } else {
                     Log.i(TAG, String.format("Null child %d/%d, parent: %s", i, count, node));
                 }
             }
         }
-        serializer.endTag("", "node");
+        writer.endNode();
+    }
+
+    /**
+     * A layout with no child and nothing to show or to click, e.g. a spacer.
+     */
+    private static boolean isEmptyLayout(AccessibilityNodeInfo node) {
+        if (node.getChildCount() > 0 || node.isClickable() || node.isLongClickable()
+                || node.isCheckable() || node.isScrollable()) {
+            return false;
+        }
+        if (!safeCharSeqToString(node.getText()).isEmpty()
+                || !safeCharSeqToString(node.getContentDescription()).isEmpty()) {
+            return false;
+        }
+        String className = safeCharSeqToString(node.getClassName());
+        return className.endsWith("Layout") || className.equals(android.view.ViewGroup.class.getName());
+    }
+
+    /**
+     * The options of one dump. The node budget is only used by sequential walks.
+     */
+    private static class Walk {
+        final NodeTraversal traversal;
+        final int width;
+        final int height;
+        final boolean visibleOnly;
+        final boolean skipEmptyLayouts;
+        final Set<String> packages;
+        final int maxNodes;
+        private int nodes = 0;
+
+        Walk(String operation, DumpOptions options, int width, int height) {
+            this.traversal = new NodeTraversal(operation);
+            this.width = width;
+            this.height = height;
+            if (options == null) {
+                options = new DumpOptions();
+            }
+            this.visibleOnly = options.isVisibleOnly();
+            this.skipEmptyLayouts = options.isSkipEmptyLayouts();
+            this.packages = options.getPackages() == null ? null : new HashSet<>(Arrays.asList(options.getPackages()));
+            this.maxNodes = options.getMaxNodes();
+        }
+
+        boolean acceptsPackage(CharSequence packageName) {
+            return packages == null || (packageName != null && packages.contains(packageName.toString()));
+        }
+
+        /**
+         * Count a node below a window root against the budget.
+         *
+         * @return false when the budget is spent
+         */
+        boolean take() {
+            if (maxNodes <= 0) {
+                return true;
+            }
+            if (nodes >= maxNodes) {
+                return false;
+            }
+            nodes++;
+            return true;
+        }
+    }
+
+    /**
+     * Measures the time spent in the writer, which is the serialization, and counts the nodes.
+     * Only used by one thread: each parallel walk has its own, added to the main one with its
+     * window. The serialization of the parallel windows is summed over their threads.
+     */
+    private static class TimedWriter implements HierarchyWriter {
+        private final HierarchyWriter writer;
+        private long nanos = 0;
+        int nodes = 0;
+
+        TimedWriter(HierarchyWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void startHierarchy(int rotation, int width, int height) throws IOException {
+            long start = PhaseRecorder.start();
+            writer.startHierarchy(rotation, width, height);
+            nanos += PhaseRecorder.start() - start;
+        }
+
+        @Override
+        public void startNode(AccessibilityNodeInfo node, int index, int width, int height) throws IOException {
+            long start = PhaseRecorder.start();
+            writer.startNode(node, index, width, height);
+            nanos += PhaseRecorder.start() - start;
+            nodes++;
+        }
+
+        @Override
+        public void endNode() throws IOException {
+            long start = PhaseRecorder.start();
+            writer.endNode();
+            nanos += PhaseRecorder.start() - start;
+        }
+
+        @Override
+        public void endHierarchy() throws IOException {
+            long start = PhaseRecorder.start();
+            writer.endHierarchy();
+            nanos += PhaseRecorder.start() - start;
+        }
+
+        @Override
+        public TimedWriter newWindowWriter(OutputStream out) throws IOException {
+            return new TimedWriter(writer.newWindowWriter(out));
+        }
+
+        @Override
+        public void writeWindow(byte[] data, int length) throws IOException {
+            long start = PhaseRecorder.start();
+            writer.writeWindow(data, length);
+            nanos += PhaseRecorder.start() - start;
+        }
+
+        /**
+         * Count the nodes and the serialization of a window writer.
+         */
+        void add(TimedWriter window) {
+            nanos += window.nanos;
+            nodes += window.nodes;
+        }
+
+        /**
+         * Record the walk since walkStart minus the serialization, and the serialization.
+         */
+        void record(String walkPhase, String serializePhase, long walkStart) {
+            long walkNanos = PhaseRecorder.start() - walkStart - nanos;
+            PhaseRecorder.recordNanos(walkPhase, Math.max(0, walkNanos), nodes);
+            PhaseRecorder.recordNanos(serializePhase, nanos, nodes);
+        }
+    }
+
+    /**
+     * The serialized nodes of one window walked in parallel.
+     */
+    private static class WindowBuffer {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TimedWriter writer;
+    }
+
+    /**
+     * The original uiautomator XML format.
+     */
+    static class XmlHierarchyWriter implements HierarchyWriter {
+        private final XmlSerializer serializer;
+        private final OutputStream out;
+        private final int attributes;
+        // the nodes of one window, without the document around them
+        private final boolean window;
+
+        XmlHierarchyWriter(OutputStream out, int attributes) throws IOException {
+            this(out, attributes, false);
+        }
+
+        private XmlHierarchyWriter(OutputStream out, int attributes, boolean window) throws IOException {
+            this.out = out;
+            this.attributes = attributes;
+            this.window = window;
+            serializer = Xml.newSerializer();
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+            serializer.setOutput(out, "UTF-8");
+        }
+
+        @Override
+        public void startHierarchy(int rotation, int width, int height) throws IOException {
+            serializer.startDocument("UTF-8", true);
+            serializer.startTag("", "hierarchy"); // TODO(allenhair): Should we use a namespace?
+            serializer.attribute("", "rotation", Integer.toString(rotation));
+        }
+
+        @Override
+        public void startNode(AccessibilityNodeInfo node, int index, int width, int height) throws IOException {
+            serializer.startTag("", "node");
+            if (has(ATTR_NAF) && !nafExcludedClass(node) && !nafCheck(node))
+                serializer.attribute("", "NAF", Boolean.toString(true));
+            serializer.attribute("", "index", Integer.toString(index));
+            try {
+                if (has(ATTR_TEXT))
+                    serializer.attribute("", "text", safeCharSeqToString(node.getText()));
+                if (has(ATTR_RESOURCE_ID))
+                    serializer.attribute("", "resource-id", safeCharSeqToString(node.getViewIdResourceName()));
+                if (has(ATTR_CLASS))
+                    serializer.attribute("", "class", safeCharSeqToString(node.getClassName()));
+                if (has(ATTR_PACKAGE))
+                    serializer.attribute("", "package", safeCharSeqToString(node.getPackageName()));
+                if (has(ATTR_CONTENT_DESC))
+                    serializer.attribute("", "content-desc", safeCharSeqToString(node.getContentDescription()));
+            } catch (IllegalArgumentException e) {
+                // java.lang.IllegalArgumentException: Illegal character (U+0)
+                // TODO: maybe the best way is to update safeCharSeqToString
+                e.printStackTrace();
+            }
+            if (has(ATTR_CHECKABLE))
+                serializer.attribute("", "checkable", Boolean.toString(node.isCheckable()));
+            if (has(ATTR_CHECKED))
+                serializer.attribute("", "checked", Boolean.toString(node.isChecked()));
+            if (has(ATTR_CLICKABLE))
+                serializer.attribute("", "clickable", Boolean.toString(node.isClickable()));
+            if (has(ATTR_ENABLED))
+                serializer.attribute("", "enabled", Boolean.toString(node.isEnabled()));
+            if (has(ATTR_FOCUSABLE))
+                serializer.attribute("", "focusable", Boolean.toString(node.isFocusable()));
+            if (has(ATTR_FOCUSED))
+                serializer.attribute("", "focused", Boolean.toString(node.isFocused()));
+            if (has(ATTR_SCROLLABLE))
+                serializer.attribute("", "scrollable", Boolean.toString(node.isScrollable()));
+            if (has(ATTR_LONG_CLICKABLE))
+                serializer.attribute("", "long-clickable", Boolean.toString(node.isLongClickable()));
+            if (has(ATTR_PASSWORD))
+                serializer.attribute("", "password", Boolean.toString(node.isPassword()));
+            if (has(ATTR_SELECTED))
+                serializer.attribute("", "selected", Boolean.toString(node.isSelected()));
+            if (has(ATTR_VISIBLE_TO_USER))
+                serializer.attribute("", "visible-to-user", Boolean.toString(node.isVisibleToUser()));
+            if (has(ATTR_BOUNDS))
+                serializer.attribute("", "bounds", AccessibilityNodeInfoHelper.getVisibleBoundsInScreen(
+                        node, width, height, false).toShortString());
+            if (has(ATTR_DRAWING_ORDER) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                serializer.attribute("", "drawing-order",
+                        Integer.toString(Api24Impl.getDrawingOrder(node)));
+            }
+            if (has(ATTR_HINT) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                serializer.attribute("", "hint", safeCharSeqToString(Api26Impl.getHintText(node)));
+            }
+            if (has(ATTR_DISPLAY_ID) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                serializer.attribute("", "display-id",
+                        Integer.toString(Api30Impl.getDisplayId(node)));
+            }
+        }
+
+        private boolean has(int attribute) {
+            return (attributes & attribute) != 0;
+        }
+
+        @Override
+        public void endNode() throws IOException {
+            serializer.endTag("", "node");
+        }
+
+        @Override
+        public void endHierarchy() throws IOException {
+            if (window) {
+                serializer.flush();
+                return;
+            }
+            serializer.endTag("", "hierarchy");
+            serializer.endDocument();
+        }
+
+        @Override
+        public HierarchyWriter newWindowWriter(OutputStream out) throws IOException {
+            return new XmlHierarchyWriter(out, attributes, true);
+        }
+
+        @Override
+        public void writeWindow(byte[] data, int length) throws IOException {
+            // closes the pending start tag of the hierarchy before the bytes go around the serializer
+            serializer.flush();
+            out.write(data, 0, length);
+        }
     }
 
     /**
@@ -168,7 +634,7 @@ class AccessibilityNodeInfoDumper {
      * @param node
      * @return true if node is excluded.
      */
-    private static boolean nafExcludedClass(AccessibilityNodeInfo node) {
+    static boolean nafExcludedClass(AccessibilityNodeInfo node) {
         String className = safeCharSeqToString(node.getClassName());
         for(String excludedClassName : NAF_EXCLUDED_CLASSES) {
             if(className.endsWith(excludedClassName))
@@ -187,7 +653,7 @@ class AccessibilityNodeInfoDumper {
      * @param node
      * @return false if a node fails the check, true if all is OK
      */
-    private static boolean nafCheck(AccessibilityNodeInfo node) {
+    static boolean nafCheck(AccessibilityNodeInfo node) {
         boolean isNaf = node.isClickable() && node.isEnabled()
                 && safeCharSeqToString(node.getContentDescription()).isEmpty()
                 && safeCharSeqToString(node.getText()).isEmpty();
@@ -23,26 +23,86 @@
 
 package com.github.uiautomator.stub;
 
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.view.accessibility.AccessibilityNodeInfo;
+
 import androidx.test.InstrumentationRegistry;
 import androidx.test.uiautomator.UiDevice;
+import androidx.test.uiautomator.UiObjectNotFoundException;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.uiautomator.util.BitmapPool;
+import com.github.uiautomator.util.MjpegStream;
+import com.github.uiautomator.util.PooledByteArrayOutputStream;
+import com.github.uiautomator.util.ScreenshotEncoder;
+import com.github.uiautomator.util.TileFingerprint;
 import com.googlecode.jsonrpc4j.JsonRpcServer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeUnit;
 
 import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
 
-public class AutomatorHttpServer extends NanoHTTPD {
+public class AutomatorHttpServer extends NanoWSD {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_SKIPPED_ERROR_CODE = AutomatorService.ERROR_CODE_BASE - 4;
+    // NanoHTTPD closes a connection after 5 seconds without data, the clients answer the pings with a pong
+    private static final long WEBSOCKET_PING_INTERVAL = 2000;
+    private static final byte[] PING_PAYLOAD = "ping".getBytes();
+    private static final long MAX_TOAST_WAIT = 60000;
+    private static final String EVENTS_ROUTE = "/events";
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final TileFingerprint.History screenshotHistory = new TileFingerprint.History();
+    private final Set<WebSocket> webSockets = new CopyOnWriteArraySet<>();
+    private final DeviceEventNotifier deviceEventNotifier = new DeviceEventNotifier();
+    private ScheduledExecutorService webSocketPinger;
+    // The calls of all the WebSocket connections, sized like the workers and their queue
+    private ThreadPoolExecutor webSocketCalls;
+    // Served without waiting for a worker, they must answer even when the workers are busy
+    private static final Set<String> FAST_LANE = new HashSet<>(Arrays.asList("/ping", "/stop", "/stats", "/stats/phases", "/screenshot/0", "/screenshot/mjpeg", "/toasts", EVENTS_ROUTE));
+    private RequestLimiter limiter = new RequestLimiter(RequestLimiter.DEFAULT_WORKERS, RequestLimiter.DEFAULT_QUEUE);
+    private BoundedAsyncRunner asyncRunner = new BoundedAsyncRunner(RequestLimiter.DEFAULT_CONNECTIONS);
+    // A streaming response takes over the permit of its request until the stream is written
+    private final ThreadLocal<RequestLimiter.Permit> currentPermit = new ThreadLocal<>();
 
     public AutomatorHttpServer(int port) {
         super(port);
+        setAsyncRunner(asyncRunner);
+    }
+
+    /**
+     * Read the worker limits from the instrumentation arguments, e.g. "-e workers 4 -e queue 32 -e connections 64".
+     * Must be called before start().
+     */
+    public void configure(Bundle arguments) {
+        limiter = new RequestLimiter(
+                RequestLimiter.getInt(arguments, RequestLimiter.ARG_WORKERS, RequestLimiter.DEFAULT_WORKERS),
+                RequestLimiter.getInt(arguments, RequestLimiter.ARG_QUEUE, RequestLimiter.DEFAULT_QUEUE));
+        asyncRunner = new BoundedAsyncRunner(
+                RequestLimiter.getInt(arguments, RequestLimiter.ARG_CONNECTIONS, RequestLimiter.DEFAULT_CONNECTIONS));
+        setAsyncRunner(asyncRunner);
     }
 
     private Map<String, JsonRpcServer> router = new HashMap<String, JsonRpcServer>();
@@ -51,50 +111,181 @@ public class AutomatorHttpServer extends NanoHTTPD {
         router.put(uri, rpc);
     }
 
+    private AutomatorService automator;
+
+    /**
+     * The service resolving the selector of /screenshot/element, the same way as its objInfo call.
+     */
+    public void setAutomator(AutomatorService automator) {
+        this.automator = automator;
+    }
+
+    /**
+     * A WebSocket upgrade of a jsonrpc route opens a {@link JsonRpcWebSocket}, of /events an
+     * {@link EventWebSocket}.
+     */
+    @Override
+    public Response serve(IHTTPSession session) {
+        if (isWebsocketRequested(session)) {
+            if (EVENTS_ROUTE.equals(session.getUri())) {
+                try {
+                    EventFilter.fromParams(session.getParms());
+                } catch (IllegalArgumentException e) {
+                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+                }
+            } else if (!router.containsKey(session.getUri())) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found!!!");
+            }
+        }
+        return super.serve(session);
+    }
+
+    @Override
+    protected WebSocket openWebSocket(IHTTPSession handshake) {
+        if (EVENTS_ROUTE.equals(handshake.getUri())) {
+            return new EventWebSocket(handshake, EventFilter.fromParams(handshake.getParms()), this);
+        }
+        return new JsonRpcWebSocket(handshake, router.get(handshake.getUri()), this);
+    }
+
+    synchronized void onWebSocketOpen(WebSocket webSocket) {
+        webSockets.add(webSocket);
+        if (webSocketPinger == null) {
+            deviceEventNotifier.start();
+            webSocketCalls = new ThreadPoolExecutor(limiter.getWorkers(), limiter.getWorkers(), 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(Math.max(1, limiter.getQueueCapacity())));
+            webSocketCalls.allowCoreThreadTimeOut(true);
+            webSocketPinger = Executors.newSingleThreadScheduledExecutor();
+            webSocketPinger.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (WebSocket ws : webSockets) {
+                        try {
+                            ws.ping(PING_PAYLOAD);
+                        } catch (IOException e) {
+                            Log.d("websocket ping failed: " + e);
+                        }
+                    }
+                }
+            }, WEBSOCKET_PING_INTERVAL, WEBSOCKET_PING_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void onWebSocketClose(WebSocket webSocket) {
+        webSockets.remove(webSocket);
+        if (webSockets.isEmpty() && webSocketPinger != null) {
+            webSocketPinger.shutdownNow();
+            webSocketPinger = null;
+            webSocketCalls.shutdown();
+            webSocketCalls = null;
+            deviceEventNotifier.stop();
+        }
+    }
+
+    /**
+     * Run a JSON-RPC call of a WebSocket connection. It takes a worker like an HTTP request, so the
+     * connections do not add to the requests running on UiAutomation.
+     *
+     * @param rejected run instead of the call when no worker is free and the queue is full
+     */
+    synchronized void executeWebSocketCall(final Runnable call, final Runnable rejected) {
+        if (webSocketCalls == null) {
+            return; // closed
+        }
+        final RequestLimiter callLimiter = limiter;
+        try {
+            webSocketCalls.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RequestLimiter.Permit permit = callLimiter.tryAcquire();
+                    if (permit == null) {
+                        rejected.run();
+                        return;
+                    }
+                    try {
+                        call.run();
+                    } finally {
+                        permit.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.run();
+        }
+    }
+
     @Override
     public Response serve(String uri, Method method,
                           Map<String, String> headers, Map<String, String> params,
                           Map<String, String> files) {
         Log.d(String.format("URI: %s, Method: %s, params, %s, files: %s", uri, method, params, files));
 
+        if (FAST_LANE.contains(uri)) {
+            limiter.countFastLane();
+            return handle(uri, method, headers, params, files);
+        }
+        RequestLimiter.Permit permit = limiter.tryAcquire();
+        if (permit == null) {
+            return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Server busy, retry later");
+        }
+        currentPermit.set(permit);
+        try {
+            return handle(uri, method, headers, params, files);
+        } finally {
+            RequestLimiter.Permit remaining = currentPermit.get();
+            currentPermit.remove();
+            if (remaining != null) {
+                remaining.release();
+            }
+        }
+    }
+
+    private Response handle(String uri, Method method,
+                            Map<String, String> headers, Map<String, String> params,
+                            Map<String, String> files) {
         if ("/stop".equals(uri)) {
             stop();
             return newFixedLengthResponse("Server stopped!!!");
+        } else if ("/stats".equals(uri)) {
+            return handleStats();
+        } else if ("/stats/phases".equals(uri)) {
+            return handlePhaseStats(params);
         } else if ("/ping".equals(uri)) {
             return newFixedLengthResponse("pong");
         } else if ("/screenshot/0".equals(uri)) {
-            float scale = 1.0f;
-            if (params.containsKey("scale")) {
-                try {
-                    scale = Float.parseFloat(params.get("scale"));
-                } catch (NumberFormatException e) {
-                }
-            }
-            int quality = 100;
-            if (params.containsKey("quality")) {
-                try {
-                    quality = Integer.parseInt(params.get("quality"));
-                } catch (NumberFormatException e) {
-                }
-            }
-            File f = new File(InstrumentationRegistry.getTargetContext().getFilesDir(), "screenshot.png");
-            UiDevice.getInstance(InstrumentationRegistry.getInstrumentation()).takeScreenshot(f, scale, quality);
-
-            try {
-                return newChunkedResponse(Response.Status.OK, "image/png", new FileInputStream(f));
-            } catch (FileNotFoundException e) {
-                Log.e(e.getMessage());
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal Server Error!!!");
-            }
+            return handleScreenshot(headers, params);
+        } else if (EVENTS_ROUTE.equals(uri)) {
+            return handleEvents(params);
+        } else if ("/toasts".equals(uri)) {
+            return handleToasts(params);
+        } else if ("/screenshot/element".equals(uri)) {
+            return handleElementScreenshot(headers, params);
+        } else if ("/screenshot/mjpeg".equals(uri)) {
+            return handleMjpeg(params);
+        } else if ("/dump/hierarchy".equals(uri)) {
+            return handleDumpHierarchy(params);
         } else if (router.containsKey(uri)) {
             JsonRpcServer jsonRpcServer = router.get(uri);
-            ByteArrayInputStream is = null;
-            if (params.get("NanoHttpd.QUERY_STRING") != null)
-                is = new ByteArrayInputStream(params.get("NanoHttpd.QUERY_STRING").getBytes());
-            else if (files.get("postData") != null)
-                is = new ByteArrayInputStream(files.get("postData").getBytes());
+            String body;
+            // The post data wins, so a POST can carry options like stop_on_error in its query string
+            if (files.get("postData") != null)
+                body = files.get("postData");
+            else if (params.get("NanoHttpd.QUERY_STRING") != null)
+                body = params.get("NanoHttpd.QUERY_STRING");
             else
                 return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Invalid http post data!");
+            if (body.trim().startsWith("[")) {
+                JsonNode batch = null;
+                try {
+                    batch = mapper.readTree(body);
+                } catch (IOException e) {
+                    // let jsonrpc4j answer with a parse error
+                }
+                if (batch != null && batch.isArray() && batch.size() > 0) {
+                    return handleJsonRpcBatch(jsonRpcServer, (ArrayNode) batch, "true".equals(params.get("stop_on_error")));
+                }
+            }
+            ByteArrayInputStream is = new ByteArrayInputStream(body.getBytes());
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             try {
                 jsonRpcServer.handleRequest(is, os);
@@ -106,4 +297,420 @@ public class AutomatorHttpServer extends NanoHTTPD {
             return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found!!!");
     }
 
+    /**
+     * Take the screenshot with UiAutomation and encode it in memory, nothing is written to the disk.
+     * <p>
+     * The response has an ETag made of a tile fingerprint of the screen. A client sending it back
+     * in If-None-Match gets a 304 while the screen did not change. With changed=true it only gets
+     * the part of the screen that changed since that frame, located by the X-Changed-Region header.
+     *
+     * @param params format (png, jpeg or webp, default png), quality (0-100, default 100),
+     *               scale (default 1.0), region ("left,top,right,bottom" in screen pixels),
+     *               changed (true to crop to the changed tiles)
+     */
+    private Response handleScreenshot(Map<String, String> headers, Map<String, String> params) {
+        float scale = 1.0f;
+        if (params.containsKey("scale")) {
+            try {
+                scale = Float.parseFloat(params.get("scale"));
+            } catch (NumberFormatException e) {
+            }
+        }
+        int quality = 100;
+        if (params.containsKey("quality")) {
+            try {
+                quality = Integer.parseInt(params.get("quality"));
+            } catch (NumberFormatException e) {
+            }
+        }
+        String format = ScreenshotEncoder.FORMAT_PNG;
+        if (params.containsKey("format")) {
+            format = ScreenshotEncoder.normalizeFormat(params.get("format"));
+            if (format == null) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown format: " + params.get("format"));
+            }
+        }
+        android.graphics.Rect region = null;
+        if (params.containsKey("region")) {
+            region = ScreenshotEncoder.parseRegion(params.get("region"));
+            if (region == null) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid region: " + params.get("region"));
+            }
+        }
+
+        long start = PhaseRecorder.start();
+        Bitmap screenshot = InstrumentationRegistry.getInstrumentation().getUiAutomation().takeScreenshot();
+        if (screenshot == null) {
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal Server Error!!!");
+        }
+        start = PhaseRecorder.record(PhaseRecorder.SCREENSHOT_CAPTURE, start);
+        String etag = null;
+        android.graphics.Rect changedRegion = null;
+        TileFingerprint fingerprint = TileFingerprint.compute(screenshot);
+        if (fingerprint != null) {
+            String ifNoneMatch = headers.get("if-none-match");
+            etag = fingerprint.getETag(format + "," + quality + "," + scale + "," + params.get("region"));
+            if (etag.equals(ifNoneMatch)) {
+                screenshot.recycle();
+                Response response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, MIME_PLAINTEXT, "");
+                response.addHeader("ETag", etag);
+                return response;
+            }
+            TileFingerprint previous = screenshotHistory.get(ifNoneMatch);
+            if ("true".equals(params.get("changed")) && previous != null) {
+                changedRegion = fingerprint.changedRegion(previous);
+                if (changedRegion != null && region != null && !changedRegion.intersect(region)) {
+                    changedRegion = null;
+                }
+                if (changedRegion != null) {
+                    region = changedRegion;
+                }
+            }
+            screenshotHistory.put(etag, fingerprint);
+        }
+        PooledByteArrayOutputStream out = PooledByteArrayOutputStream.obtain();
+        Bitmap image = null;
+        try {
+            image = ScreenshotEncoder.transform(screenshot, region, scale);
+            image.compress(ScreenshotEncoder.getCompressFormat(format), quality, out);
+            PhaseRecorder.record(PhaseRecorder.SCREENSHOT_ENCODE, start);
+        } catch (IllegalArgumentException e) {
+            out.recycle();
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+        } finally {
+            if (image != null) {
+                ScreenshotEncoder.release(image, screenshot);
+            }
+            screenshot.recycle();
+        }
+        Response response = newFixedLengthResponse(Response.Status.OK, ScreenshotEncoder.getMimeType(format), out.toInputStream(), out.size());
+        if (etag != null) {
+            response.addHeader("ETag", etag);
+        }
+        if (changedRegion != null) {
+            response.addHeader("X-Changed-Region", changedRegion.left + "," + changedRegion.top + "," + changedRegion.right + "," + changedRegion.bottom);
+        }
+        return response;
+    }
+
+    /**
+     * Stream the accessibility events matching the filter as newline delimited JSON, until the
+     * client disconnects. It does not hold a worker.
+     *
+     * @param params see {@link EventFilter#fromParams(Map)}
+     */
+    private Response handleEvents(Map<String, String> params) {
+        EventFilter filter;
+        try {
+            filter = EventFilter.fromParams(params);
+        } catch (IllegalArgumentException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+        }
+        EventSubscription subscription = new EventSubscription(filter);
+        subscription.start();
+        return newChunkedResponse(Response.Status.OK, "application/x-ndjson", subscription.toInputStream());
+    }
+
+    /**
+     * Long poll of the toasts after a sequence number, as a JSON array. It does not hold a worker
+     * while it waits.
+     *
+     * @param params since (default 0), timeout (ms, default 0 for no wait, at most MAX_TOAST_WAIT)
+     */
+    private Response handleToasts(Map<String, String> params) {
+        long since = 0;
+        long timeout = 0;
+        try {
+            if (params.containsKey("since")) since = Long.parseLong(params.get("since"));
+            if (params.containsKey("timeout")) timeout = Math.min(MAX_TOAST_WAIT, Long.parseLong(params.get("timeout")));
+        } catch (NumberFormatException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid parameter: " + e.getMessage());
+        }
+        AccessibilityEventListener events = AccessibilityEventListener.getInstance();
+        ToastEvent[] toasts;
+        events.acquireToasts();
+        try {
+            toasts = events.getToastHistory().await(since, timeout);
+        } catch (InterruptedException e) {
+            toasts = new ToastEvent[0];
+        } finally {
+            events.releaseToasts();
+            events.keepToasts();
+        }
+        try {
+            return newFixedLengthResponse(Response.Status.OK, "application/json", mapper.writeValueAsString(toasts));
+        } catch (IOException e) {
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal Server Error!!!");
+        }
+    }
+
+    /**
+     * Screenshot of the visible bounds of the element matching a selector. It holds a worker,
+     * unlike /screenshot/0, since it searches the hierarchy. The element is found like the
+     * objInfo call finds it, so both agree on the bounds.
+     *
+     * @param params selector (the JSON of a Selector), then the same as /screenshot/0 except region
+     */
+    private Response handleElementScreenshot(Map<String, String> headers, Map<String, String> params) {
+        String json = params.get("selector");
+        if (json == null) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Missing selector");
+        }
+        Rect bounds;
+        try {
+            Selector selector = mapper.readValue(json, Selector.class);
+            bounds = automator.objInfo(selector).getVisibleBounds();
+        } catch (IOException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid selector: " + e.getMessage());
+        } catch (UiObjectNotFoundException e) {
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "UiObject not found: " + e.getMessage());
+        }
+        if (bounds == null || bounds.getRight() <= bounds.getLeft() || bounds.getBottom() <= bounds.getTop()) {
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Element is not visible on the screen");
+        }
+        Map<String, String> screenshotParams = new HashMap<>(params);
+        screenshotParams.put("region", bounds.getLeft() + "," + bounds.getTop() + "," + bounds.getRight() + "," + bounds.getBottom());
+        return handleScreenshot(headers, screenshotParams);
+    }
+
+    /**
+     * Live screen as a multipart/x-mixed-replace stream of JPEG frames. It does not hold a worker.
+     *
+     * @param params fps (default 10, max 30), quality (default 60), scale (default 1.0)
+     */
+    private Response handleMjpeg(Map<String, String> params) {
+        int fps = MjpegStream.DEFAULT_FPS;
+        int quality = MjpegStream.DEFAULT_QUALITY;
+        float scale = 1.0f;
+        try {
+            if (params.containsKey("fps")) fps = Integer.parseInt(params.get("fps"));
+            if (params.containsKey("quality")) quality = Integer.parseInt(params.get("quality"));
+            if (params.containsKey("scale")) scale = Float.parseFloat(params.get("scale"));
+        } catch (NumberFormatException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid parameter: " + e.getMessage());
+        }
+        MjpegStream stream = new MjpegStream(new MjpegStream.FrameSource() {
+            @Override
+            public Bitmap capture() {
+                return InstrumentationRegistry.getInstrumentation().getUiAutomation().takeScreenshot();
+            }
+        }, fps, quality, scale);
+        return newChunkedResponse(Response.Status.OK, MjpegStream.MIME_TYPE, stream);
+    }
+
+    /**
+     * Worker, queue and connection counters as JSON.
+     */
+    private Response handleStats() {
+        Map<String, Object> stats = limiter.getStats();
+        stats.put("activeConnections", asyncRunner.getActiveConnections());
+        stats.put("rejectedConnections", asyncRunner.getRejectedConnections());
+        Map<String, Object> screenshot = BitmapPool.getStats();
+        screenshot.putAll(PooledByteArrayOutputStream.getStats());
+        stats.put("screenshot", screenshot);
+        stats.put("events", EventSubscription.getStats());
+        stats.put("traversal", NodeTraversal.getStats());
+        try {
+            return newFixedLengthResponse(Response.Status.OK, "application/json", mapper.writeValueAsString(stats));
+        } catch (IOException e) {
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal Server Error!!!");
+        }
+    }
+
+    /**
+     * The phase latencies of {@link PhaseRecorder}.
+     *
+     * @param params reset (true/false, default false) clears them once read
+     */
+    private Response handlePhaseStats(Map<String, String> params) {
+        PhaseStats[] stats = PhaseRecorder.getStats();
+        if ("true".equals(params.get("reset"))) {
+            PhaseRecorder.reset();
+        }
+        try {
+            return newFixedLengthResponse(Response.Status.OK, "application/json", mapper.writeValueAsString(stats));
+        } catch (IOException e) {
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal Server Error!!!");
+        }
+    }
+
+    /**
+     * Run the calls of a JSON-RPC 2.0 batch one after the other, in order, and stream each response
+     * as soon as its call completes. Notifications produce no response, so a batch of notifications
+     * only gets an empty body, as JSON-RPC 2.0 requires.
+     *
+     * @param stopOnError when a call fails, the remaining calls are not run and answer a "skipped" error
+     */
+    private Response handleJsonRpcBatch(final JsonRpcServer jsonRpcServer, final ArrayNode batch, final boolean stopOnError) {
+        return newStreamingResponse("application/json", new StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                boolean stopped = false;
+                boolean first = true;
+                for (JsonNode item : batch) {
+                    byte[] response;
+                    if (stopped) {
+                        response = item.hasNonNull("id") ? mapper.writeValueAsBytes(skippedError(item.get("id"))) : null;
+                    } else {
+                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        jsonRpcServer.handleRequest(new ByteArrayInputStream(mapper.writeValueAsBytes(item)), os);
+                        response = os.size() > 0 ? os.toByteArray() : null;
+                        if (stopOnError && response != null && mapper.readTree(response).has("error")) {
+                            stopped = true;
+                        }
+                    }
+                    if (response == null) {
+                        continue;
+                    }
+                    // the array is opened by the first response
+                    out.write(first ? '[' : ',');
+                    first = false;
+                    out.write(response);
+                    out.flush();
+                }
+                if (!first) {
+                    out.write(']');
+                }
+            }
+        });
+    }
+
+    private ObjectNode skippedError(JsonNode id) {
+        ObjectNode error = mapper.createObjectNode();
+        error.put("code", BATCH_SKIPPED_ERROR_CODE);
+        error.put("message", "Skipped");
+        error.put("data", "Not run because a previous call of the batch failed");
+        ObjectNode response = mapper.createObjectNode();
+        response.put("jsonrpc", "2.0");
+        response.set("id", id);
+        response.set("error", error);
+        return response;
+    }
+
+    /**
+     * Stream the window hierarchy XML to the client while the tree is walked, instead of
+     * buffering the whole document like the jsonrpc dumpWindowHierarchy does.
+     * The response is gzipped by NanoHTTPD when the client sends "Accept-Encoding: gzip".
+     *
+     * @param params compressed (true/false, default false), max_depth (default 50),
+     *               format (xml or binary, default xml), and the {@link DumpOptions}:
+     *               attributes (comma separated), visible_only (default true),
+     *               skip_empty_layouts (default false), packages (comma separated), max_nodes,
+     *               selector (the JSON of a Selector) to dump the subtree of that element only
+     */
+    private Response handleDumpHierarchy(Map<String, String> params) {
+        final boolean compressed = "true".equals(params.get("compressed"));
+        final String format = params.get("format");
+        if (format != null && !AccessibilityNodeInfoDumper.FORMAT_XML.equals(format)
+                && !AccessibilityNodeInfoDumper.FORMAT_BINARY.equals(format)) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown format: " + format);
+        }
+        final DumpOptions options = new DumpOptions();
+        if (params.containsKey("attributes")) {
+            options.setAttributes(params.get("attributes").split(","));
+        }
+        if (params.containsKey("visible_only")) {
+            options.setVisibleOnly(!"false".equals(params.get("visible_only")));
+        }
+        options.setSkipEmptyLayouts("true".equals(params.get("skip_empty_layouts")));
+        if (params.containsKey("packages")) {
+            options.setPackages(params.get("packages").split(","));
+        }
+        final int attributes;
+        try {
+            attributes = AccessibilityNodeInfoDumper.attributeMask(options.getAttributes());
+            if (params.containsKey("max_nodes")) {
+                options.setMaxNodes(Integer.parseInt(params.get("max_nodes")));
+            }
+        } catch (IllegalArgumentException e) {
+            // also a NumberFormatException
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+        }
+        int depth = 50;
+        if (params.containsKey("max_depth")) {
+            try {
+                depth = Integer.parseInt(params.get("max_depth"));
+            } catch (NumberFormatException e) {
+            }
+        }
+        final int maxDepth = depth;
+        final UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        String mimeType = AccessibilityNodeInfoDumper.FORMAT_BINARY.equals(format)
+                ? "application/octet-stream" : "text/xml; charset=utf-8";
+        String json = params.get("selector");
+        if (json != null) {
+            // resolved before the response starts, so a missing element is a 404
+            final AccessibilityNodeInfo root;
+            try {
+                device.setCompressedLayoutHierarchy(compressed);
+                root = AccessibilityNodeInfoDumper.findNode(mapper.readValue(json, Selector.class).toUiSelector());
+            } catch (IOException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid selector: " + e.getMessage());
+            } catch (UiObjectNotFoundException e) {
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "UiObject not found: " + e.getMessage());
+            }
+            return newStreamingResponse(mimeType, new StreamWriter() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    try {
+                        AccessibilityNodeInfoDumper.dumpSubtree(device, root,
+                                AccessibilityNodeInfoDumper.newWriter(format, out, attributes), maxDepth, options);
+                    } finally {
+                        root.recycle();
+                    }
+                }
+            });
+        }
+        return newStreamingResponse(mimeType, new StreamWriter() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                device.setCompressedLayoutHierarchy(compressed);
+                AccessibilityNodeInfoDumper.dumpWindowHierarchy(device,
+                        AccessibilityNodeInfoDumper.newWriter(format, out, attributes), maxDepth, options);
+            }
+        });
+    }
+
+    interface StreamWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Run the writer in a background thread and send whatever it produces as a chunked response.
+     * The pipe is bounded, so the writer is throttled by the speed of the client.
+     */
+    private Response newStreamingResponse(String mimeType, final StreamWriter writer) {
+        final PipedInputStream in = new PipedInputStream(STREAM_BUFFER_SIZE);
+        final PipedOutputStream out;
+        try {
+            out = new PipedOutputStream(in);
+        } catch (IOException e) {
+            Log.e(e.getMessage());
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Internal Server Error!!!");
+        }
+        final RequestLimiter.Permit permit = currentPermit.get();
+        currentPermit.remove();
+        new Thread("StreamingResponse") {
+            @Override
+            public void run() {
+                try {
+                    writer.writeTo(out);
+                } catch (Exception e) {
+                    // client gone or producer failed, the response is truncated
+                    Log.d("streaming response aborted: " + e);
+                } finally {
+                    if (permit != null) {
+                        permit.release();
+                    }
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }.start();
+        return newChunkedResponse(Response.Status.OK, mimeType, in);
+    }
+
 }
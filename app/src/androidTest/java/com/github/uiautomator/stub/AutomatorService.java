@@ -85,6 +85,26 @@ public interface AutomatorService {
      */
     boolean clearLastToast();
 
+    /**
+     * get the toasts received after a sequence number. Toasts are recorded while the toast
+     * listener is enabled (see setToastListener), during the waits and for 30 seconds after each
+     * read of the history
+     *
+     * @param since the seq of the last toast already read, 0 for all the toasts still kept
+     * @return the toasts, oldest first
+     */
+    ToastEvent[] getToasts(long since);
+
+    /**
+     * wait for toasts received after a sequence number. The toasts are recorded during the wait
+     * and for 30 seconds after it, even when the toast listener is disabled
+     *
+     * @param since   the seq of the last toast already read
+     * @param timeout milliseconds
+     * @return the toasts, oldest first, empty when none came before the timeout
+     */
+    ToastEvent[] waitForToasts(long since, long timeout);
+
     /***************************************************************************
      * Below section contains all methods from UiDevice.
      ***************************************************************************/
@@ -177,6 +197,94 @@ public interface AutomatorService {
      */
     String dumpWindowHierarchy(boolean compressed, int maxDepth);
 
+    /**
+     * Dump the current window's layout hierarchy in the given format
+     *
+     * @param compressed
+     * @param maxDepth
+     * @param format     "xml" or "binary", see CompactHierarchyWriter for the binary layout
+     * @return xml content, or base64 encoded data for the binary format
+     */
+    String dumpWindowHierarchy(boolean compressed, int maxDepth, String format);
+
+    /**
+     * Dump the current window's layout hierarchy with only the attributes and nodes asked for
+     *
+     * @param compressed
+     * @param maxDepth
+     * @param format     "xml" or "binary"
+     * @param options    attribute whitelist, visibleOnly, skipEmptyLayouts, packages and maxNodes; null for the full dump
+     * @return xml content, or base64 encoded data for the binary format
+     */
+    String dumpWindowHierarchy(boolean compressed, int maxDepth, String format, DumpOptions options);
+
+    /**
+     * Dump the subtree of the ui object matching the selector, instead of the whole screen
+     *
+     * @param obj      the selector of the root of the subtree
+     * @param maxDepth depth of the dump below the root
+     * @return xml content
+     * @throws UiObjectNotFoundException
+     */
+    @JsonRpcErrors({@JsonRpcError(exception = UiObjectNotFoundException.class, code = ERROR_CODE_BASE - 2)})
+    String dumpWindowHierarchy(Selector obj, int maxDepth) throws UiObjectNotFoundException;
+
+    /**
+     * Dump the subtree of the ui object matching the selector in the given format
+     *
+     * @param obj      the selector of the root of the subtree
+     * @param maxDepth depth of the dump below the root
+     * @param format   "xml" or "binary"
+     * @param options  see dumpWindowHierarchy(compressed, maxDepth, format, options), null for the full dump
+     * @return xml content, or base64 encoded data for the binary format
+     * @throws UiObjectNotFoundException
+     */
+    @JsonRpcErrors({@JsonRpcError(exception = UiObjectNotFoundException.class, code = ERROR_CODE_BASE - 2)})
+    String dumpWindowHierarchy(Selector obj, int maxDepth, String format, DumpOptions options) throws UiObjectNotFoundException;
+
+    /**
+     * Open a hierarchy session, used to fetch the changes of the window hierarchy since a given version
+     *
+     * @return session id
+     */
+    String openHierarchySession();
+
+    /**
+     * Get the changes of the window hierarchy since the version held by the client
+     *
+     * @param session      session id returned by openHierarchySession
+     * @param sinceVersion version held by the client, 0 to get the whole hierarchy
+     * @return the added, changed and removed nodes, the whole hierarchy if sinceVersion is not the latest version
+     */
+    HierarchyDiff getHierarchyDiff(String session, long sinceVersion);
+
+    /**
+     * Close a hierarchy session
+     *
+     * @param session session id
+     * @return true if the session existed
+     */
+    boolean closeHierarchySession(String session);
+
+    /**
+     * Get the children lookups of the dumps and snapshots, and how many of them were binder fetches
+     *
+     * @return one entry per kind of walk: dump, subtreeDump, snapshot, snapshotSubtree
+     */
+    TraversalStats[] getTraversalStats();
+
+    /**
+     * Get the latency histograms of the phases of the dumps, selector lookups, screenshots and input injections
+     *
+     * @return one entry per phase recorded since the last reset, e.g. dump.waitForIdle, dump.walk, selector.match; times in microseconds
+     */
+    PhaseStats[] getPhaseStats();
+
+    /**
+     * Clear the phase latencies
+     */
+    void resetPhaseStats();
+
     /**
      * Take a screenshot of current window and store it as PNG The screenshot is adjusted per screen rotation
      *
@@ -192,7 +300,7 @@ public interface AutomatorService {
     /**
      * Take a screenshot of current window and store it as JPEG The screenshot is adjusted per screen rotation
      *
-     * @param scale
+     * @param scale   scale the screenshot down if needed; 1.0f for original size
      * @param quality
      * @return base64 encoded image data
      * @throws NotImplementedException
@@ -200,6 +308,28 @@ public interface AutomatorService {
     @JsonRpcErrors({@JsonRpcError(exception = NotImplementedException.class, code = ERROR_CODE_BASE - 3)})
     public String takeScreenshot(float scale, int quality) throws NotImplementedException;
 
+    /**
+     * Take a screenshot of a part of the screen as JPEG, cropped before it is scaled and compressed
+     *
+     * @param region  the part of the screen, in screen pixels
+     * @param scale   scale the region down if needed; 1.0f for original size
+     * @param quality
+     * @return base64 encoded image data, null if failed
+     */
+    public String takeRegionScreenshot(Rect region, float scale, int quality);
+
+    /**
+     * Take a screenshot of the visible bounds of an element as JPEG
+     *
+     * @param obj     the selector of the element
+     * @param scale   scale the element down if needed; 1.0f for original size
+     * @param quality
+     * @return base64 encoded image data, null if failed
+     * @throws UiObjectNotFoundException
+     */
+    @JsonRpcErrors({@JsonRpcError(exception = UiObjectNotFoundException.class, code = ERROR_CODE_BASE - 2)})
+    public String takeElementScreenshot(Selector obj, float scale, int quality) throws UiObjectNotFoundException;
+
     /**
      * Disables the sensors and freezes the device rotation at its current rotation state, or enable it.
      *
@@ -299,6 +429,13 @@ public interface AutomatorService {
      */
     void runWatchers();
 
+    /**
+     * Get the trigger counts of the watchers, and the time spent to check them on window changes.
+     *
+     * @return the watcher engine metrics
+     */
+    WatcherEngineStats getWatcherStats();
+
     /**
      * Get all registered UiWatchers
      *
@@ -526,6 +663,14 @@ public interface AutomatorService {
      */
     ObjInfo[] objInfoOfAllInstances(Selector obj);
 
+    /**
+     * Get the count and the info of all instances by the selector, with a single walk of the hierarchy.
+     *
+     * @param obj the selector of ui object.
+     * @return count and array of object info.
+     */
+    SelectorMatches findAllObjects(Selector obj);
+
     /**
      * Generates a two-pointer gesture with arbitrary starting and ending points.
      *
@@ -812,6 +957,13 @@ public interface AutomatorService {
      */
     String[] getUiObjects();
 
+    /**
+     * Get the number of live named UiObjects and how many were created, expired or evicted.
+     *
+     * @return the stats of the named UiObjects
+     */
+    UiObjectStats getUiObjectStats();
+
     /**
      * Clears the existing text contents in an editable field. The UiSelector of this object must reference a UI element that is editable. When you call this method, the method first sets focus at the start edge of the field. The method then simulates a long-press to select the existing text, and deletes the selected text. If a "Select-All" option is displayed, the method will automatically attempt to use it to ensure full text selection. Note that it is possible that not all the text in the field is selected; for example, if the text contains separators such as spaces, slashes, at symbol etc. Also, not all editable fields support the long-press functionality.
      *
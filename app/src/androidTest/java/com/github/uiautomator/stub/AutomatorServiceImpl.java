@@ -37,6 +37,7 @@ import android.os.RemoteException;
 import android.os.SystemClock;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
 
 import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.uiautomator.Configurator;
@@ -55,23 +56,24 @@ import com.github.uiautomator.ToastHelper;
 import com.github.uiautomator.exceptions.NotImplementedException;
 import com.github.uiautomator.stub.watcher.ClickUiObjectWatcher;
 import com.github.uiautomator.stub.watcher.PressKeysWatcher;
+import com.github.uiautomator.util.PooledByteArrayOutputStream;
+import com.github.uiautomator.util.ScreenshotEncoder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
 
 
 public class AutomatorServiceImpl implements AutomatorService {
 
     private final HashSet<String> watchers = new HashSet<>();
-    private final ConcurrentHashMap<String, UiObject> uiObjects = new ConcurrentHashMap<>();
+    private final UiObjectRegistry uiObjects = new UiObjectRegistry();
     private SoundPool soundPool = new SoundPool(100, AudioManager.STREAM_MUSIC, 0);
 
     Handler handler = new Handler(Looper.getMainLooper());
@@ -80,6 +82,11 @@ public class AutomatorServiceImpl implements AutomatorService {
     private UiAutomation uiAutomation;
     private Instrumentation mInstrumentation;
     private TouchController touchController;
+    private AccessibilityEventListener eventListener;
+    private HierarchySessions hierarchySessions;
+    private SnapshotCache snapshotCache;
+    private SelectorWaiter selectorWaiter;
+    private WatcherEngine watcherEngine;
     ClipboardManager clipboard;
 
     public AutomatorServiceImpl() {
@@ -99,9 +106,12 @@ public class AutomatorServiceImpl implements AutomatorService {
         mInstrumentation = InstrumentationRegistry.getInstrumentation();
         uiAutomation = mInstrumentation.getUiAutomation();
 
-        //uiAutomation.setOnAccessibilityEventListener(new AccessibilityEventListener(device, watchers));
-
         device = UiDevice.getInstance(mInstrumentation);
+        eventListener = new AccessibilityEventListener(uiAutomation, device, watchers);
+        hierarchySessions = new HierarchySessions(device, eventListener);
+        snapshotCache = new SnapshotCache(device, eventListener);
+        selectorWaiter = new SelectorWaiter(eventListener);
+        watcherEngine = new WatcherEngine(device, eventListener);
         touchController = new TouchController(mInstrumentation);
 
         handler.post(new Runnable() {
@@ -139,13 +149,7 @@ public class AutomatorServiceImpl implements AutomatorService {
     }
 
     public void setToastListener(boolean enabled) {
-        if (enabled) {
-            // default uiAutomation serviceInfo.eventTypes is -1
-            // this might means watch all eventTypes
-            getUiAutomation().setOnAccessibilityEventListener(new AccessibilityEventListener(device, watchers));
-        } else {
-            getUiAutomation().setOnAccessibilityEventListener(null);
-        }
+        eventListener.setToastEnabled(enabled);
     }
 
     /**
@@ -195,6 +199,26 @@ public class AutomatorServiceImpl implements AutomatorService {
         return true;
     }
 
+    @Override
+    public ToastEvent[] getToasts(long since) {
+        eventListener.keepToasts();
+        return eventListener.getToastHistory().since(since);
+    }
+
+    @Override
+    public ToastEvent[] waitForToasts(long since, long timeout) {
+        eventListener.acquireToasts();
+        try {
+            return eventListener.getToastHistory().await(since, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ToastEvent[0];
+        } finally {
+            eventListener.releaseToasts();
+            eventListener.keepToasts();
+        }
+    }
+
     /**
      * Perform a click at arbitrary coordinates specified by the user.
      *
@@ -251,7 +275,10 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public boolean swipe(int startX, int startY, int endX, int endY, int steps) {
-        return device.swipe(startX, startY, endX, endY, steps);
+        long start = PhaseRecorder.start();
+        boolean result = device.swipe(startX, startY, endX, endY, steps);
+        PhaseRecorder.record(PhaseRecorder.INPUT_SWIPE, start);
+        return result;
     }
 
     @Override
@@ -260,7 +287,10 @@ public class AutomatorServiceImpl implements AutomatorService {
         for (int i = 0; i < segments.length / 2; i++) {
             points[i] = new android.graphics.Point(segments[2 * i], segments[2 * i + 1]);
         }
-        return device.swipe(points, segmentSteps);
+        long start = PhaseRecorder.start();
+        boolean result = device.swipe(points, segmentSteps);
+        PhaseRecorder.record(PhaseRecorder.INPUT_SWIPE, start);
+        return result;
     }
 
     // Multi touch is a little complicated
@@ -310,6 +340,95 @@ public class AutomatorServiceImpl implements AutomatorService {
         return null;
     }
 
+    @Override
+    public String dumpWindowHierarchy(boolean compressed, int maxDepth, String format) {
+        if (format == null || AccessibilityNodeInfoDumper.FORMAT_XML.equals(format)) {
+            return dumpWindowHierarchy(compressed, maxDepth);
+        }
+        device.setCompressedLayoutHierarchy(compressed);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            AccessibilityNodeInfoDumper.dumpWindowHierarchy(device, AccessibilityNodeInfoDumper.newWriter(format, os), maxDepth);
+            return Base64.getEncoder().encodeToString(os.toByteArray());
+        } catch (IOException e) {
+            Log.d("dumpWindowHierarchy got IOException: " + e);
+        }
+        return null;
+    }
+
+    @Override
+    public String dumpWindowHierarchy(boolean compressed, int maxDepth, String format, DumpOptions options) {
+        int attributes = AccessibilityNodeInfoDumper.attributeMask(options == null ? null : options.getAttributes());
+        device.setCompressedLayoutHierarchy(compressed);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            AccessibilityNodeInfoDumper.dumpWindowHierarchy(device,
+                    AccessibilityNodeInfoDumper.newWriter(format, os, attributes), maxDepth, options);
+            if (format == null || AccessibilityNodeInfoDumper.FORMAT_XML.equals(format)) {
+                return os.toString("UTF-8");
+            }
+            return Base64.getEncoder().encodeToString(os.toByteArray());
+        } catch (IOException e) {
+            Log.d("dumpWindowHierarchy got IOException: " + e);
+        }
+        return null;
+    }
+
+    @Override
+    public String dumpWindowHierarchy(Selector obj, int maxDepth) throws UiObjectNotFoundException {
+        return dumpWindowHierarchy(obj, maxDepth, null, null);
+    }
+
+    @Override
+    public String dumpWindowHierarchy(Selector obj, int maxDepth, String format, DumpOptions options) throws UiObjectNotFoundException {
+        int attributes = AccessibilityNodeInfoDumper.attributeMask(options == null ? null : options.getAttributes());
+        AccessibilityNodeInfo root = AccessibilityNodeInfoDumper.findNode(obj.toUiSelector());
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            AccessibilityNodeInfoDumper.dumpSubtree(device, root,
+                    AccessibilityNodeInfoDumper.newWriter(format, os, attributes), maxDepth, options);
+            if (format == null || AccessibilityNodeInfoDumper.FORMAT_XML.equals(format)) {
+                return os.toString("UTF-8");
+            }
+            return Base64.getEncoder().encodeToString(os.toByteArray());
+        } catch (IOException e) {
+            Log.d("dumpWindowHierarchy got IOException: " + e);
+        } finally {
+            root.recycle();
+        }
+        return null;
+    }
+
+    @Override
+    public String openHierarchySession() {
+        return hierarchySessions.open();
+    }
+
+    @Override
+    public HierarchyDiff getHierarchyDiff(String session, long sinceVersion) {
+        return hierarchySessions.getDiff(session, sinceVersion);
+    }
+
+    @Override
+    public boolean closeHierarchySession(String session) {
+        return hierarchySessions.close(session);
+    }
+
+    @Override
+    public TraversalStats[] getTraversalStats() {
+        return NodeTraversal.getStats();
+    }
+
+    @Override
+    public PhaseStats[] getPhaseStats() {
+        return PhaseRecorder.getStats();
+    }
+
+    @Override
+    public void resetPhaseStats() {
+        PhaseRecorder.reset();
+    }
+
     /**
      * Take a screenshot of current window and store it as PNG The screenshot is adjusted per screen rotation
      *
@@ -329,26 +448,55 @@ public class AutomatorServiceImpl implements AutomatorService {
 
     @Override
     public String takeScreenshot(float scale, int quality) throws NotImplementedException {
+        return takeScreenshot(null, scale, quality);
+    }
+
+    @Override
+    public String takeRegionScreenshot(Rect region, float scale, int quality) {
+        return takeScreenshot(new android.graphics.Rect(region.getLeft(), region.getTop(), region.getRight(), region.getBottom()), scale, quality);
+    }
+
+    @Override
+    public String takeElementScreenshot(Selector obj, float scale, int quality) throws UiObjectNotFoundException {
+        Rect bounds = objInfo(obj).getVisibleBounds();
+        return takeRegionScreenshot(bounds, scale, quality);
+    }
+
+    /**
+     * @param region null for the whole screen, cropped before it is scaled and compressed
+     * @return base64 of the JPEG image, null if the screen can not be captured
+     */
+    private String takeScreenshot(android.graphics.Rect region, float scale, int quality) {
+        long start = PhaseRecorder.start();
         Bitmap screenshot = getUiAutomation().takeScreenshot();
         if (screenshot == null) {
             return null;
         }
+        start = PhaseRecorder.record(PhaseRecorder.SCREENSHOT_CAPTURE, start);
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // both buffers come from the pool, only the returned string is allocated
+        PooledByteArrayOutputStream jpeg = PooledByteArrayOutputStream.obtain();
+        PooledByteArrayOutputStream base64 = PooledByteArrayOutputStream.obtain();
+        Bitmap image = null;
         try {
-            screenshot.compress(Bitmap.CompressFormat.JPEG, quality, bos);
-            bos.flush();
-            return Base64.getEncoder().encodeToString(bos.toByteArray());
+            image = ScreenshotEncoder.transform(screenshot, region, scale);
+            image.compress(Bitmap.CompressFormat.JPEG, quality, jpeg);
+            base64.ensureCapacity((jpeg.size() + 2) / 3 * 4);
+            OutputStream encoder = Base64.getEncoder().wrap(base64);
+            encoder.write(jpeg.getBuffer(), 0, jpeg.size());
+            encoder.close();
+            PhaseRecorder.record(PhaseRecorder.SCREENSHOT_ENCODE, start);
+            return new String(base64.getBuffer(), 0, base64.size(), StandardCharsets.US_ASCII);
         } catch (IOException ioe) {
             Log.e("takeScreenshot error: " + ioe);
             return null;
         } finally {
-            try {
-                bos.close();
-            } catch (IOException ioe) {
-                // Ignore
+            if (image != null) {
+                ScreenshotEncoder.release(image, screenshot);
             }
             screenshot.recycle();
+            jpeg.recycle();
+            base64.recycle();
         }
     }
 
@@ -427,7 +575,7 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public boolean hasWatcherTriggered(String watcherName) {
-        return device.hasWatcherTriggered(watcherName);
+        return watcherEngine.hasTriggered(watcherName);
     }
 
     /**
@@ -437,7 +585,7 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public boolean hasAnyWatcherTriggered() {
-        return device.hasAnyWatcherTriggered();
+        return watcherEngine.hasAnyTriggered();
     }
 
     /**
@@ -451,7 +599,7 @@ public class AutomatorServiceImpl implements AutomatorService {
     public void registerClickUiObjectWatcher(String name, Selector[] conditions, Selector target) {
         synchronized (watchers) {
             if (watchers.contains(name)) {
-                device.removeWatcher(name);
+                watcherEngine.remove(name);
                 watchers.remove(name);
             }
 
@@ -459,7 +607,9 @@ public class AutomatorServiceImpl implements AutomatorService {
             for (int i = 0; i < conditions.length; i++) {
                 selectors[i] = conditions[i].toUiSelector();
             }
-            device.registerWatcher(name, new ClickUiObjectWatcher(selectors, target.toUiSelector()));
+            ClickUiObjectWatcher watcher = new ClickUiObjectWatcher(selectors, target.toUiSelector());
+            watcher.setName(name);
+            watcherEngine.register(name, conditions, watcher);
             watchers.add(name);
         }
     }
@@ -475,7 +625,7 @@ public class AutomatorServiceImpl implements AutomatorService {
     public void registerPressKeyskWatcher(String name, Selector[] conditions, String[] keys) {
         synchronized (watchers) {
             if (watchers.contains(name)) {
-                device.removeWatcher(name);
+                watcherEngine.remove(name);
                 watchers.remove(name);
             }
 
@@ -483,7 +633,9 @@ public class AutomatorServiceImpl implements AutomatorService {
             for (int i = 0; i < conditions.length; i++) {
                 selectors[i] = conditions[i].toUiSelector();
             }
-            device.registerWatcher(name, new PressKeysWatcher(selectors, keys));
+            PressKeysWatcher watcher = new PressKeysWatcher(selectors, keys);
+            watcher.setName(name);
+            watcherEngine.register(name, conditions, watcher);
             watchers.add(name);
         }
     }
@@ -497,7 +649,7 @@ public class AutomatorServiceImpl implements AutomatorService {
     public void removeWatcher(String name) {
         synchronized (watchers) {
             if (watchers.contains(name)) {
-                device.removeWatcher(name);
+                watcherEngine.remove(name);
                 watchers.remove(name);
             }
         }
@@ -508,7 +660,7 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public void resetWatcherTriggers() {
-        device.resetWatcherTriggers();
+        watcherEngine.resetTriggers();
     }
 
     /**
@@ -516,7 +668,12 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public void runWatchers() {
-        device.runWatchers();
+        watcherEngine.runNow();
+    }
+
+    @Override
+    public WatcherEngineStats getWatcherStats() {
+        return watcherEngine.getStats();
     }
 
     /**
@@ -573,7 +730,10 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public boolean pressKeyCode(int keyCode) {
-        return device.pressKeyCode(keyCode);
+        long start = PhaseRecorder.start();
+        boolean result = device.pressKeyCode(keyCode);
+        PhaseRecorder.record(PhaseRecorder.INPUT_KEY, start);
+        return result;
     }
 
     /**
@@ -585,7 +745,10 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public boolean pressKeyCode(int keyCode, int metaState) {
-        return device.pressKeyCode(keyCode, metaState);
+        long start = PhaseRecorder.start();
+        boolean result = device.pressKeyCode(keyCode, metaState);
+        PhaseRecorder.record(PhaseRecorder.INPUT_KEY, start);
+        return result;
     }
 
     /**
@@ -701,11 +864,22 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public boolean click(Selector obj) throws UiObjectNotFoundException {
-        if (obj.toUiObject2() == null) {
-            return device.findObject(obj.toUiSelector()).click();
-        } else {
-            obj.toUiObject2().click();
-            return true;
+        long start = PhaseRecorder.start();
+        try {
+            if (SnapshotCache.isEnabled()) {
+                Rect bounds = findInSnapshot(obj, searchesAllWindows(obj)).getVisibleBounds();
+                boolean clicked = device.click((bounds.getLeft() + bounds.getRight()) / 2, (bounds.getTop() + bounds.getBottom()) / 2);
+                snapshotCache.invalidate();
+                return clicked;
+            }
+            if (obj.toUiObject2() == null) {
+                return device.findObject(obj.toUiSelector()).click();
+            } else {
+                obj.toUiObject2().click();
+                return true;
+            }
+        } finally {
+            PhaseRecorder.record(PhaseRecorder.SELECTOR_CLICK, start);
         }
     }
 
@@ -839,9 +1013,18 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public boolean exist(Selector obj) {
-        if (obj.getChildOrSibling().length == 0 && obj.toBySelector() != null)
-            return device.wait(Until.hasObject(obj.toBySelector()), 0L);
-        return device.findObject(obj.toUiSelector()).exists();
+        long start = PhaseRecorder.start();
+        try {
+            if (SnapshotCache.isEnabled()) {
+                boolean allWindows = obj.getChildOrSibling().length == 0 && obj.toBySelector() != null;
+                return new SelectorMatcher(snapshotCache.get(allWindows)).find(obj, allWindows) != null;
+            }
+            if (obj.getChildOrSibling().length == 0 && obj.toBySelector() != null)
+                return device.wait(Until.hasObject(obj.toBySelector()), 0L);
+            return device.findObject(obj.toUiSelector()).exists();
+        } finally {
+            PhaseRecorder.record(PhaseRecorder.SELECTOR_EXIST, start);
+        }
     }
 
     /**
@@ -853,17 +1036,41 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public ObjInfo objInfo(Selector obj) throws UiObjectNotFoundException {
+        long start = PhaseRecorder.start();
         try {
-            final UiObject2 obj2 = obj.toUiObject2(); // to avoid a race condition
-            if (obj2 != null) {
-                return ObjInfo.getObjInfo(obj2);
+            if (SnapshotCache.isEnabled()) {
+                return ObjInfo.getObjInfo(findInSnapshot(obj, searchesAllWindows(obj)));
             }
-        } catch (StaleObjectException e) {
-            Log.d("objInfo got StaleObjectException " + e);
-            // HotFix(ssx): Here always raise StaleObjectException
-            // Refs: https://github.com/openatx/uiautomator2/issues/138
+            try {
+                final UiObject2 obj2 = obj.toUiObject2(); // to avoid a race condition
+                if (obj2 != null) {
+                    return ObjInfo.getObjInfo(obj2);
+                }
+            } catch (StaleObjectException e) {
+                Log.d("objInfo got StaleObjectException " + e);
+                // HotFix(ssx): Here always raise StaleObjectException
+                // Refs: https://github.com/openatx/uiautomator2/issues/138
+            }
+            return ObjInfo.getObjInfo(device.findObject(obj.toUiSelector()));
+        } finally {
+            PhaseRecorder.record(PhaseRecorder.SELECTOR_OBJ_INFO, start);
+        }
+    }
+
+    /**
+     * The selectors without child/sibling chain, index or instance are resolved as UiObject2,
+     * which searches all the windows instead of only the active one.
+     */
+    private static boolean searchesAllWindows(Selector obj) {
+        return obj.getChildOrSibling().length == 0 && !obj.checkBySelectorNull(obj);
+    }
+
+    private SnapshotNode findInSnapshot(Selector obj, boolean allWindows) throws UiObjectNotFoundException {
+        SnapshotNode node = new SelectorMatcher(snapshotCache.get(allWindows)).find(obj, allWindows);
+        if (node == null) {
+            throw new UiObjectNotFoundException(obj.toUiSelector().toString());
         }
-        return ObjInfo.getObjInfo(device.findObject(obj.toUiSelector()));
+        return node;
     }
 
     /**
@@ -874,31 +1081,7 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public int count(Selector obj) {
-        if ((obj.deepSelector().getMask() & Selector.MASK_INSTANCE) > 0) {
-            if (device.findObject(obj.toUiSelector()).exists()) return 1;
-            else return 0;
-        } else {
-            UiSelector sel = obj.toUiSelector();
-            if (!device.findObject(sel).exists()) return 0;
-            int low = 1;
-            int high = 2;
-
-            // Note: can not use `sel = sel.instance(high -1)`
-            // because this will change first selector in chain not last.
-            sel = obj.toUiSelector(high - 1);
-            while (device.findObject(sel).exists()) {
-                low = high;
-                high = high * 2;
-                sel = obj.toUiSelector(high - 1);
-            }
-            while (high > low + 1) {
-                int mid = (low + high) / 2;
-                sel = obj.toUiSelector(mid - 1);
-                if (device.findObject(sel).exists()) low = mid;
-                else high = mid;
-            }
-            return low;
-        }
+        return findAllInstances(obj).size();
     }
 
     /**
@@ -909,25 +1092,32 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public ObjInfo[] objInfoOfAllInstances(Selector obj) {
-        int total = count(obj);
-        ObjInfo objs[] = new ObjInfo[total];
-        if ((obj.getMask() & Selector.MASK_INSTANCE) > 0 && total > 0) {
-            try {
-                objs[0] = objInfo(obj);
-            } catch (UiObjectNotFoundException e) {
-            }
-        } else {
-            UiSelector sel = obj.toUiSelector();
-            for (int i = 0; i < total; i++) {
-                try {
-                    objs[i] = ObjInfo.getObjInfo(sel.instance(i));
-                } catch (UiObjectNotFoundException e) {
-                }
-            }
+        List<SnapshotNode> nodes = findAllInstances(obj);
+        ObjInfo objs[] = new ObjInfo[nodes.size()];
+        for (int i = 0; i < objs.length; i++) {
+            objs[i] = ObjInfo.getObjInfo(nodes.get(i));
         }
         return objs;
     }
 
+    @Override
+    public SelectorMatches findAllObjects(Selector obj) {
+        return new SelectorMatches(objInfoOfAllInstances(obj));
+    }
+
+    /**
+     * Collect the instances of the selector in one walk, instead of probing instance(i) with a search each.
+     * Like UiSelector queries only the active window is searched.
+     */
+    private List<SnapshotNode> findAllInstances(Selector obj) {
+        SelectorMatcher matcher = new SelectorMatcher(snapshotCache.get(false));
+        if ((obj.deepSelector().getMask() & Selector.MASK_INSTANCE) > 0) {
+            SnapshotNode node = matcher.find(obj, false);
+            return node == null ? Collections.<SnapshotNode>emptyList() : Collections.singletonList(node);
+        }
+        return matcher.findAll(obj, false, Integer.MAX_VALUE);
+    }
+
     /**
      * Generates a two-pointer gesture with arbitrary starting and ending points.
      *
@@ -1047,16 +1237,16 @@ public class AutomatorServiceImpl implements AutomatorService {
      * @return true if the view is displayed, else false if timeout elapsed while waiting
      */
     @Override
-    public boolean waitForExists(Selector obj, long timeout) {
-        try {
-            if (obj.getChildOrSibling().length == 0 && obj.checkBySelectorNull(obj) == false)
-                return device.wait(Until.hasObject(obj.toBySelector()), timeout);
-        } catch (ClassCastException e) {
-            Log.d("waitForExists got ClassCastException " + e);
-            // Hotfix because of https://github.com/openatx/uiautomator2/issues/140
-        }
-        // https://developer.android.com/reference/android/support/test/uiautomator/UiObject#waitforexists
-        return device.findObject(obj.toUiSelector()).waitForExists(timeout);
+    public boolean waitForExists(final Selector obj, long timeout) {
+        long start = PhaseRecorder.start();
+        boolean result = selectorWaiter.waitFor(new SelectorWaiter.Condition() {
+            @Override
+            public boolean check() {
+                return existsNow(obj);
+            }
+        }, waitPackageName(obj), timeout);
+        PhaseRecorder.record(PhaseRecorder.SELECTOR_WAIT, start);
+        return result;
     }
 
     /**
@@ -1067,14 +1257,38 @@ public class AutomatorServiceImpl implements AutomatorService {
      * @return true if the element is gone before timeout elapsed, else false if timeout elapsed but a matching element is still found.
      */
     @Override
-    public boolean waitUntilGone(Selector obj, long timeout) {
+    public boolean waitUntilGone(final Selector obj, long timeout) {
+        long start = PhaseRecorder.start();
+        boolean result = selectorWaiter.waitFor(new SelectorWaiter.Condition() {
+            @Override
+            public boolean check() {
+                return !existsNow(obj);
+            }
+        }, waitPackageName(obj), timeout);
+        PhaseRecorder.record(PhaseRecorder.SELECTOR_WAIT, start);
+        return result;
+    }
+
+    /**
+     * The exist check of the waits, with the hotfix of https://github.com/openatx/uiautomator2/issues/140
+     */
+    private boolean existsNow(Selector obj) {
         try {
-            if (obj.getChildOrSibling().length == 0 && obj.checkBySelectorNull(obj) == false)
-                return device.wait(Until.gone(obj.toBySelector()), timeout);
+            return exist(obj);
         } catch (ClassCastException e) {
-            Log.d("waitUntilGone got ClassCastException " + e);
+            Log.d("exist got ClassCastException " + e);
+            return device.findObject(obj.toUiSelector()).exists();
+        }
+    }
+
+    /**
+     * @return the package the selector is bound to, null if any package may match
+     */
+    private static String waitPackageName(Selector obj) {
+        if ((obj.getMask() & Selector.MASK_PACKAGENAME) > 0) {
+            return obj.getPackageName();
         }
-        return device.findObject(obj.toUiSelector()).waitUntilGone(timeout);
+        return null;
     }
 
     /**
@@ -1238,25 +1452,7 @@ public class AutomatorServiceImpl implements AutomatorService {
      * @return the name of the UiObject
      */
     private String addUiObject(UiObject obj) {
-        String key = UUID.randomUUID().toString();
-        uiObjects.put(key, obj);
-        // schedule the clear timer.
-        Timer clearTimer = new Timer();
-        clearTimer.schedule(new ClearUiObjectTimerTask(key), 60000);
-        return key;
-    }
-
-    class ClearUiObjectTimerTask extends TimerTask {
-        String name;
-
-        public ClearUiObjectTimerTask(String name) {
-            this.name = name;
-        }
-
-        @Override
-        public void run() {
-            uiObjects.remove(name);
-        }
+        return uiObjects.put(obj);
     }
 
     /**
@@ -1387,16 +1583,20 @@ public class AutomatorServiceImpl implements AutomatorService {
      */
     @Override
     public String[] getUiObjects() {
-        Set<String> strings = uiObjects.keySet();
-        return strings.toArray(new String[strings.size()]);
+        return uiObjects.keys();
+    }
+
+    @Override
+    public UiObjectStats getUiObjectStats() {
+        return uiObjects.getStats();
     }
 
     private UiObject getUiObject(String name) throws UiObjectNotFoundException {
-        if (uiObjects.containsKey(name)) {
-            return uiObjects.get(name);
-        } else {
+        UiObject obj = uiObjects.get(name);
+        if (obj == null) {
             throw new UiObjectNotFoundException("UiObject " + name + " not found!");
         }
+        return obj;
     }
 
     /**
@@ -0,0 +1,71 @@
+package com.github.uiautomator.stub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Replaces the DefaultAsyncRunner of NanoHTTPD, which starts a new thread for every connection,
+ * with a pool of at most maxConnections threads. Connections beyond that are closed at once.
+ */
+class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+    private final ThreadPoolExecutor executor;
+    private final List<NanoHTTPD.ClientHandler> running = Collections.synchronizedList(new ArrayList<NanoHTTPD.ClientHandler>());
+    private final AtomicLong rejected = new AtomicLong();
+
+    BoundedAsyncRunner(int maxConnections) {
+        int threads = Math.max(1, maxConnections);
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "NanoHttpd Request Processor (#" + count.incrementAndGet() + ")");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void closeAll() {
+        for (NanoHTTPD.ClientHandler clientHandler : new ArrayList<>(running)) {
+            clientHandler.close();
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler clientHandler) {
+        running.remove(clientHandler);
+    }
+
+    @Override
+    public void exec(NanoHTTPD.ClientHandler clientHandler) {
+        running.add(clientHandler);
+        try {
+            executor.execute(clientHandler);
+        } catch (RejectedExecutionException e) {
+            running.remove(clientHandler);
+            rejected.incrementAndGet();
+            clientHandler.close();
+        }
+    }
+
+    int getActiveConnections() {
+        return running.size();
+    }
+
+    long getRejectedConnections() {
+        return rejected.get();
+    }
+}
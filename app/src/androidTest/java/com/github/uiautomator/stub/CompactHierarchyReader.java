@@ -0,0 +1,221 @@
+package com.github.uiautomator.stub;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Reference decoder for the format written by {@link CompactHierarchyWriter}.
+ * It only depends on the JDK, so it can be copied as is into JVM side clients.
+ * <p>
+ * The strings and bounds of the attributes left out of the dump are null and 0, check
+ * {@link Hierarchy#has} to tell them from real values. Version 1 dumps always have them all.
+ */
+public class CompactHierarchyReader {
+    private static final int VERSION = 2;
+
+    private static final int END = 0;
+    private static final int START = 1;
+    private static final int END_NODE = 2;
+    private static final int RESET_STRINGS = 3;
+
+    public static final int FLAG_NAF = 1;
+    public static final int FLAG_CHECKABLE = 1 << 1;
+    public static final int FLAG_CHECKED = 1 << 2;
+    public static final int FLAG_CLICKABLE = 1 << 3;
+    public static final int FLAG_ENABLED = 1 << 4;
+    public static final int FLAG_FOCUSABLE = 1 << 5;
+    public static final int FLAG_FOCUSED = 1 << 6;
+    public static final int FLAG_SCROLLABLE = 1 << 7;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 8;
+    public static final int FLAG_PASSWORD = 1 << 9;
+    public static final int FLAG_SELECTED = 1 << 10;
+    public static final int FLAG_VISIBLE_TO_USER = 1 << 11;
+    private static final int FLAG_HAS_DRAWING_ORDER = 1 << 12;
+    private static final int FLAG_HAS_HINT = 1 << 13;
+    private static final int FLAG_HAS_DISPLAY_ID = 1 << 14;
+
+    // the bits of Hierarchy.attributes, the same as AccessibilityNodeInfoDumper.ATTR_*
+    public static final int ATTR_TEXT = 1 << 1;
+    public static final int ATTR_RESOURCE_ID = 1 << 2;
+    public static final int ATTR_CLASS = 1 << 3;
+    public static final int ATTR_PACKAGE = 1 << 4;
+    public static final int ATTR_CONTENT_DESC = 1 << 5;
+    public static final int ATTR_BOUNDS = 1 << 17;
+    private static final int ALL_ATTRIBUTES = ~0;
+
+    public static class Hierarchy {
+        public int rotation;
+        public int width;
+        public int height;
+        public int attributes;
+        public final List<Node> roots = new ArrayList<>();
+
+        /**
+         * @return true if the dump has the given ATTR_* attribute
+         */
+        public boolean has(int attribute) {
+            return (attributes & attribute) != 0;
+        }
+    }
+
+    public static class Node {
+        public int index;
+        public int flags;
+        public String text;
+        public String resourceId;
+        public String className;
+        public String packageName;
+        public String contentDescription;
+        public int left;
+        public int top;
+        public int right;
+        public int bottom;
+        public int drawingOrder = -1;
+        public String hint;
+        public int displayId = -1;
+        public final List<Node> children = new ArrayList<>();
+
+        public boolean is(int flag) {
+            return (flags & flag) != 0;
+        }
+
+        /**
+         * @return bounds in the "[left,top][right,bottom]" form of the XML dump
+         */
+        public String getBounds() {
+            return "[" + left + "," + top + "][" + right + "," + bottom + "]";
+        }
+    }
+
+    private final InputStream in;
+    private final List<String> strings = new ArrayList<>();
+
+    public CompactHierarchyReader(InputStream in) {
+        this.in = new BufferedInputStream(in);
+    }
+
+    public static Hierarchy decode(byte[] data) throws IOException {
+        return new CompactHierarchyReader(new java.io.ByteArrayInputStream(data)).read();
+    }
+
+    public Hierarchy read() throws IOException {
+        if (readByte() != 'U' || readByte() != 'I' || readByte() != 'H') {
+            throw new IOException("Not a compact hierarchy");
+        }
+        int version = readByte();
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unsupported compact hierarchy version " + version);
+        }
+        Hierarchy hierarchy = new Hierarchy();
+        hierarchy.rotation = readVarint();
+        hierarchy.width = readVarint();
+        hierarchy.height = readVarint();
+        hierarchy.attributes = version == 1 ? ALL_ATTRIBUTES : readVarint();
+
+        Deque<Node> stack = new ArrayDeque<>();
+        while (true) {
+            int tag = readByte();
+            if (tag == START) {
+                Node node = readNode(hierarchy.attributes);
+                if (stack.isEmpty()) {
+                    hierarchy.roots.add(node);
+                } else {
+                    stack.peek().children.add(node);
+                }
+                stack.push(node);
+            } else if (tag == END_NODE) {
+                if (stack.isEmpty()) {
+                    throw new IOException("Unbalanced node end");
+                }
+                stack.pop();
+            } else if (tag == RESET_STRINGS) {
+                strings.clear();
+            } else if (tag == END) {
+                return hierarchy;
+            } else {
+                throw new IOException("Unknown record " + tag);
+            }
+        }
+    }
+
+    private Node readNode(int attributes) throws IOException {
+        Node node = new Node();
+        node.index = readVarint();
+        node.flags = readVarint();
+        if ((attributes & ATTR_TEXT) != 0) node.text = readString();
+        if ((attributes & ATTR_RESOURCE_ID) != 0) node.resourceId = readString();
+        if ((attributes & ATTR_CLASS) != 0) node.className = readString();
+        if ((attributes & ATTR_PACKAGE) != 0) node.packageName = readString();
+        if ((attributes & ATTR_CONTENT_DESC) != 0) node.contentDescription = readString();
+        if ((attributes & ATTR_BOUNDS) != 0) {
+            node.left = readSignedVarint();
+            node.top = readSignedVarint();
+            node.right = readSignedVarint();
+            node.bottom = readSignedVarint();
+        }
+        if (node.is(FLAG_HAS_DRAWING_ORDER)) {
+            node.drawingOrder = readVarint();
+        }
+        if (node.is(FLAG_HAS_HINT)) {
+            node.hint = readString();
+        }
+        if (node.is(FLAG_HAS_DISPLAY_ID)) {
+            node.displayId = readVarint();
+        }
+        return node;
+    }
+
+    private String readString() throws IOException {
+        int ref = readVarint();
+        if (ref > 0) {
+            if (ref > strings.size()) {
+                throw new IOException("Bad string reference " + ref);
+            }
+            return strings.get(ref - 1);
+        }
+        byte[] bytes = new byte[readVarint()];
+        int offset = 0;
+        while (offset < bytes.length) {
+            int n = in.read(bytes, offset, bytes.length - offset);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            offset += n;
+        }
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(value);
+        return value;
+    }
+
+    private int readSignedVarint() throws IOException {
+        int value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.uiautomator.stub;
+
+import android.os.Build;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary counterpart of the XML hierarchy dump, decoded by {@link CompactHierarchyReader}.
+ * <pre>
+ * document := "UIH" VERSION rotation:uvarint width:uvarint height:uvarint attributes:uvarint record* END
+ * record   := START node | END_NODE | RESET_STRINGS
+ * node     := index:uvarint flags:uvarint [text:str] [resource-id:str] [class:str] [package:str] [content-desc:str]
+ *             [left:svarint top:svarint right:svarint bottom:svarint]   (present when their ATTR_* bit is in attributes)
+ *             [drawing-order:uvarint] [hint:str] [display-id:uvarint]   (present when the FLAG_HAS_* bit is set)
+ * str      := 0 len:uvarint utf8-bytes   (a new string, appended to the string table)
+ *           | n:uvarint                  (the n-th entry of the string table, 1-based)
+ * </pre>
+ * attributes is the mask of the AccessibilityNodeInfoDumper.ATTR_* bits that were asked for, the
+ * fields of the other attributes are not written at all and their flags are always clear.
+ * The string table is built while writing, so class names, packages and resource ids
+ * are sent once per dump. The windows serialized in parallel have their own string table, each
+ * one starts with RESET_STRINGS, which empties the table. Booleans are packed into the flags bit set.
+ */
+class CompactHierarchyWriter implements HierarchyWriter {
+    static final byte[] MAGIC = {'U', 'I', 'H'};
+    static final int VERSION = 2;
+
+    static final int END = 0;
+    static final int START = 1;
+    static final int END_NODE = 2;
+    static final int RESET_STRINGS = 3;
+
+    static final int FLAG_NAF = 1;
+    static final int FLAG_CHECKABLE = 1 << 1;
+    static final int FLAG_CHECKED = 1 << 2;
+    static final int FLAG_CLICKABLE = 1 << 3;
+    static final int FLAG_ENABLED = 1 << 4;
+    static final int FLAG_FOCUSABLE = 1 << 5;
+    static final int FLAG_FOCUSED = 1 << 6;
+    static final int FLAG_SCROLLABLE = 1 << 7;
+    static final int FLAG_LONG_CLICKABLE = 1 << 8;
+    static final int FLAG_PASSWORD = 1 << 9;
+    static final int FLAG_SELECTED = 1 << 10;
+    static final int FLAG_VISIBLE_TO_USER = 1 << 11;
+    static final int FLAG_HAS_DRAWING_ORDER = 1 << 12;
+    static final int FLAG_HAS_HINT = 1 << 13;
+    static final int FLAG_HAS_DISPLAY_ID = 1 << 14;
+
+    private final OutputStream out;
+    private final int attributes;
+    private final Map<String, Integer> strings = new HashMap<>();
+    // the nodes of one window, without the header and the END record
+    private final boolean window;
+
+    CompactHierarchyWriter(OutputStream out, int attributes) {
+        this(out, attributes, false);
+    }
+
+    private CompactHierarchyWriter(OutputStream out, int attributes, boolean window) {
+        this.out = new BufferedOutputStream(out, 8192);
+        this.attributes = attributes;
+        this.window = window;
+    }
+
+    @Override
+    public void startHierarchy(int rotation, int width, int height) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarint(rotation);
+        writeVarint(width);
+        writeVarint(height);
+        writeVarint(attributes);
+    }
+
+    /**
+     * The attributes left out are not written, except the booleans which stay false.
+     */
+    @Override
+    public void startNode(AccessibilityNodeInfo node, int index, int width, int height) throws IOException {
+        int flags = 0;
+        if (has(AccessibilityNodeInfoDumper.ATTR_NAF) && !AccessibilityNodeInfoDumper.nafExcludedClass(node)
+                && !AccessibilityNodeInfoDumper.nafCheck(node))
+            flags |= FLAG_NAF;
+        if (has(AccessibilityNodeInfoDumper.ATTR_CHECKABLE) && node.isCheckable()) flags |= FLAG_CHECKABLE;
+        if (has(AccessibilityNodeInfoDumper.ATTR_CHECKED) && node.isChecked()) flags |= FLAG_CHECKED;
+        if (has(AccessibilityNodeInfoDumper.ATTR_CLICKABLE) && node.isClickable()) flags |= FLAG_CLICKABLE;
+        if (has(AccessibilityNodeInfoDumper.ATTR_ENABLED) && node.isEnabled()) flags |= FLAG_ENABLED;
+        if (has(AccessibilityNodeInfoDumper.ATTR_FOCUSABLE) && node.isFocusable()) flags |= FLAG_FOCUSABLE;
+        if (has(AccessibilityNodeInfoDumper.ATTR_FOCUSED) && node.isFocused()) flags |= FLAG_FOCUSED;
+        if (has(AccessibilityNodeInfoDumper.ATTR_SCROLLABLE) && node.isScrollable()) flags |= FLAG_SCROLLABLE;
+        if (has(AccessibilityNodeInfoDumper.ATTR_LONG_CLICKABLE) && node.isLongClickable()) flags |= FLAG_LONG_CLICKABLE;
+        if (has(AccessibilityNodeInfoDumper.ATTR_PASSWORD) && node.isPassword()) flags |= FLAG_PASSWORD;
+        if (has(AccessibilityNodeInfoDumper.ATTR_SELECTED) && node.isSelected()) flags |= FLAG_SELECTED;
+        if (has(AccessibilityNodeInfoDumper.ATTR_VISIBLE_TO_USER) && node.isVisibleToUser()) flags |= FLAG_VISIBLE_TO_USER;
+        if (has(AccessibilityNodeInfoDumper.ATTR_DRAWING_ORDER) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            flags |= FLAG_HAS_DRAWING_ORDER;
+        if (has(AccessibilityNodeInfoDumper.ATTR_HINT) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            flags |= FLAG_HAS_HINT;
+        if (has(AccessibilityNodeInfoDumper.ATTR_DISPLAY_ID) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            flags |= FLAG_HAS_DISPLAY_ID;
+
+        out.write(START);
+        writeVarint(index);
+        writeVarint(flags);
+        if (has(AccessibilityNodeInfoDumper.ATTR_TEXT)) writeString(node.getText());
+        if (has(AccessibilityNodeInfoDumper.ATTR_RESOURCE_ID)) writeString(node.getViewIdResourceName());
+        if (has(AccessibilityNodeInfoDumper.ATTR_CLASS)) writeString(node.getClassName());
+        if (has(AccessibilityNodeInfoDumper.ATTR_PACKAGE)) writeString(node.getPackageName());
+        if (has(AccessibilityNodeInfoDumper.ATTR_CONTENT_DESC)) writeString(node.getContentDescription());
+        if (has(AccessibilityNodeInfoDumper.ATTR_BOUNDS)) {
+            android.graphics.Rect bounds = AccessibilityNodeInfoHelper.getVisibleBoundsInScreen(node, width, height, false);
+            writeSignedVarint(bounds.left);
+            writeSignedVarint(bounds.top);
+            writeSignedVarint(bounds.right);
+            writeSignedVarint(bounds.bottom);
+        }
+        if ((flags & FLAG_HAS_DRAWING_ORDER) != 0) {
+            writeVarint(AccessibilityNodeInfoDumper.Api24Impl.getDrawingOrder(node));
+        }
+        if ((flags & FLAG_HAS_HINT) != 0) {
+            writeString(AccessibilityNodeInfoDumper.Api26Impl.getHintText(node));
+        }
+        if ((flags & FLAG_HAS_DISPLAY_ID) != 0) {
+            writeVarint(AccessibilityNodeInfoDumper.Api30Impl.getDisplayId(node));
+        }
+    }
+
+    private boolean has(int attribute) {
+        return (attributes & attribute) != 0;
+    }
+
+    @Override
+    public void endNode() throws IOException {
+        out.write(END_NODE);
+    }
+
+    @Override
+    public void endHierarchy() throws IOException {
+        if (!window) {
+            out.write(END);
+        }
+        out.flush();
+    }
+
+    @Override
+    public HierarchyWriter newWindowWriter(OutputStream out) {
+        return new CompactHierarchyWriter(out, attributes, true);
+    }
+
+    @Override
+    public void writeWindow(byte[] data, int length) throws IOException {
+        out.write(RESET_STRINGS);
+        out.write(data, 0, length);
+        strings.clear();
+    }
+
+    private void writeString(CharSequence cs) throws IOException {
+        String value = cs == null ? "" : cs.toString();
+        Integer ref = strings.get(value);
+        if (ref != null) {
+            writeVarint(ref);
+            return;
+        }
+        strings.put(value, strings.size() + 1);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(0);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeSignedVarint(int value) throws IOException {
+        writeVarint((value << 1) ^ (value >> 31)); // zigzag
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
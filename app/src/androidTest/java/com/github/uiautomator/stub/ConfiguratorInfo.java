@@ -38,6 +38,7 @@ public class ConfiguratorInfo {
         this._waitForIdleTimeout = config.getWaitForIdleTimeout();
         this._waitForSelectorTimeout = config.getWaitForSelectorTimeout();
         this._uiAutomationFlags = config.getUiAutomationFlags();
+        this._snapshotTimeout = SnapshotCache.getTimeout();
     }
 
     public long getActionAcknowledgmentTimeout() {
@@ -86,6 +87,17 @@ public class ConfiguratorInfo {
         this._uiAutomationFlags = _uiAutomationFlags;
     }
 
+    /**
+     * @return how long in ms selector queries may reuse a hierarchy snapshot, 0 means disabled
+     */
+    public long getSnapshotTimeout() {
+        return _snapshotTimeout;
+    }
+
+    public void setSnapshotTimeout(long _snapshotTimeout) {
+        this._snapshotTimeout = _snapshotTimeout;
+    }
+
     public static void setConfigurator(ConfiguratorInfo info) {
         Configurator config = Configurator.getInstance();
         config.setActionAcknowledgmentTimeout(info.getActionAcknowledgmentTimeout());
@@ -94,6 +106,7 @@ public class ConfiguratorInfo {
         config.setWaitForIdleTimeout(info.getWaitForIdleTimeout());
         config.setWaitForSelectorTimeout(info.getWaitForSelectorTimeout());
         config.setUiAutomationFlags(info.getUiAutomationFlags());
+        SnapshotCache.setTimeout(info.getSnapshotTimeout());
     }
 
     private long _actionAcknowledgmentTimeout;
@@ -102,4 +115,5 @@ public class ConfiguratorInfo {
     private long _waitForIdleTimeout;
     private long _waitForSelectorTimeout;
     private int _uiAutomationFlags;
+    private long _snapshotTimeout;
 }
@@ -0,0 +1,75 @@
+package com.github.uiautomator.stub;
+
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Display;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes toasts and rotation changes as {@link Notifications}, only started while
+ * someone listens to them. The toasts themselves are published by {@link ToastHistory}, this
+ * only keeps them recorded.
+ */
+class DeviceEventNotifier implements DisplayManager.DisplayListener {
+    private final DisplayManager displayManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int rotation = -1;
+    private boolean started = false;
+
+    DeviceEventNotifier() {
+        Context context = InstrumentationRegistry.getInstrumentation().getContext();
+        this.displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+    }
+
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        rotation = currentRotation();
+        displayManager.registerDisplayListener(this, handler);
+        AccessibilityEventListener.getInstance().acquireToasts();
+        started = true;
+    }
+
+    synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        AccessibilityEventListener.getInstance().releaseToasts();
+        displayManager.unregisterDisplayListener(this);
+        started = false;
+    }
+
+    private int currentRotation() {
+        Display display = displayManager.getDisplay(Display.DEFAULT_DISPLAY);
+        return display == null ? -1 : display.getRotation();
+    }
+
+    @Override
+    public void onDisplayAdded(int displayId) {
+    }
+
+    @Override
+    public void onDisplayRemoved(int displayId) {
+    }
+
+    @Override
+    public void onDisplayChanged(int displayId) {
+        if (displayId != Display.DEFAULT_DISPLAY) {
+            return;
+        }
+        int current = currentRotation();
+        if (current != rotation) {
+            rotation = current;
+            Map<String, Object> params = new HashMap<>();
+            params.put("rotation", current);
+            Notifications.publish(Notifications.ROTATION, params);
+        }
+    }
+}
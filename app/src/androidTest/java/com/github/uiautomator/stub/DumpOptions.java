@@ -0,0 +1,55 @@
+package com.github.uiautomator.stub;
+
+/**
+ * What a hierarchy dump contains. The defaults give the same dump as without options.
+ */
+public class DumpOptions {
+    // attribute names of the xml dump, null for all of them; "index" is always written
+    private String[] _attributes;
+    private boolean _visibleOnly = true;
+    private boolean _skipEmptyLayouts = false;
+    // packages of the windows to dump, null for all of them
+    private String[] _packages;
+    // 0 for no limit
+    private int _maxNodes = 0;
+
+    public String[] getAttributes() {
+        return _attributes;
+    }
+
+    public void setAttributes(String[] attributes) {
+        this._attributes = attributes;
+    }
+
+    public boolean isVisibleOnly() {
+        return _visibleOnly;
+    }
+
+    public void setVisibleOnly(boolean visibleOnly) {
+        this._visibleOnly = visibleOnly;
+    }
+
+    public boolean isSkipEmptyLayouts() {
+        return _skipEmptyLayouts;
+    }
+
+    public void setSkipEmptyLayouts(boolean skipEmptyLayouts) {
+        this._skipEmptyLayouts = skipEmptyLayouts;
+    }
+
+    public String[] getPackages() {
+        return _packages;
+    }
+
+    public void setPackages(String[] packages) {
+        this._packages = packages;
+    }
+
+    public int getMaxNodes() {
+        return _maxNodes;
+    }
+
+    public void setMaxNodes(int maxNodes) {
+        this._maxNodes = maxNodes;
+    }
+}
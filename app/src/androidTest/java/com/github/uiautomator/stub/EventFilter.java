@@ -0,0 +1,100 @@
+package com.github.uiautomator.stub;
+
+import android.view.accessibility.AccessibilityEvent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which accessibility events a subscription wants, checked on the device before an event is
+ * queued: an event type mask, then exact package and class names.
+ */
+class EventFilter {
+    private static final Map<String, Integer> EVENT_TYPES = new HashMap<>();
+
+    static {
+        // TYPE_VIEW_CLICKED, TYPE_WINDOW_STATE_CHANGED... as defined by this platform
+        for (Field field : AccessibilityEvent.class.getFields()) {
+            int modifiers = field.getModifiers();
+            if (field.getName().startsWith("TYPE_") && field.getType() == int.class
+                    && Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers)) {
+                try {
+                    EVENT_TYPES.put(field.getName(), field.getInt(null));
+                } catch (IllegalAccessException e) {
+                    // not public after all
+                }
+            }
+        }
+    }
+
+    private final int typeMask;
+    private final Set<String> packages;
+    private final Set<String> classNames;
+
+    EventFilter(int typeMask, Set<String> packages, Set<String> classNames) {
+        this.typeMask = typeMask;
+        this.packages = packages;
+        this.classNames = classNames;
+    }
+
+    /**
+     * @param params types (comma separated names like TYPE_VIEW_CLICKED or numbers, default all),
+     *               packages and classes (comma separated, default all)
+     * @throws IllegalArgumentException for an unknown event type
+     */
+    static EventFilter fromParams(Map<String, String> params) {
+        int mask = 0;
+        String types = params.get("types");
+        if (types == null || types.trim().isEmpty()) {
+            mask = AccessibilityEvent.TYPES_ALL_MASK;
+        } else {
+            for (String type : types.split(",")) {
+                mask |= parseType(type.trim());
+            }
+        }
+        return new EventFilter(mask, parseNames(params.get("packages")), parseNames(params.get("classes")));
+    }
+
+    private static int parseType(String type) {
+        Integer value = EVENT_TYPES.get(type);
+        if (value == null) {
+            value = EVENT_TYPES.get("TYPE_" + type.toUpperCase());
+        }
+        if (value != null) {
+            return value;
+        }
+        try {
+            return Integer.decode(type);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown event type: " + type);
+        }
+    }
+
+    private static Set<String> parseNames(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> names = new HashSet<>();
+        for (String name : value.split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+
+    boolean matches(AccessibilityEvent event) {
+        if ((event.getEventType() & typeMask) == 0) {
+            return false;
+        }
+        if (!packages.isEmpty() && (event.getPackageName() == null || !packages.contains(event.getPackageName().toString()))) {
+            return false;
+        }
+        return classNames.isEmpty() || (event.getClassName() != null && classNames.contains(event.getClassName().toString()));
+    }
+}
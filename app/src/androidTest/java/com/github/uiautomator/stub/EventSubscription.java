@@ -0,0 +1,198 @@
+package com.github.uiautomator.stub;
+
+import android.app.UiAutomation;
+import android.view.accessibility.AccessibilityEvent;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The accessibility events matching an {@link EventFilter}, for one client.
+ * <p>
+ * The events are copied into a lock-free ring of CAPACITY entries, written by the accessibility
+ * thread and read by the client connection. When the client falls behind the new events are
+ * dropped and counted; the count is sent to the client with the next event.
+ * <p>
+ * An event is sent as one line of compact JSON: t (time), type, pkg, cls, text, and dropped when
+ * events were lost just before it.
+ */
+class EventSubscription implements UiAutomation.OnAccessibilityEventListener {
+    private static final int CAPACITY = 1024;
+    private static final int MAX_TEXT_LENGTH = 256;
+    private static final long IDLE_LINE_INTERVAL = 10000;
+
+    private static final AtomicInteger active = new AtomicInteger();
+    private static final AtomicLong totalDropped = new AtomicLong();
+
+    private final EventFilter filter;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicReferenceArray<ObjectNode> ring = new AtomicReferenceArray<>(CAPACITY);
+    // next slot to write, only moved by the accessibility thread
+    private final AtomicLong head = new AtomicLong();
+    // next slot to read, only moved by the reader
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+    private volatile Thread reader;
+    private volatile boolean closed = false;
+
+    EventSubscription(EventFilter filter) {
+        this.filter = filter;
+    }
+
+    static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("subscriptions", active.get());
+        stats.put("dropped", totalDropped.get());
+        return stats;
+    }
+
+    void start() {
+        active.incrementAndGet();
+        AccessibilityEventListener.getInstance().addSubscriber(this);
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        AccessibilityEventListener.getInstance().removeSubscriber(this);
+        active.decrementAndGet();
+        Thread waiting = reader;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (closed || !filter.matches(event)) {
+            return;
+        }
+        long h = head.get();
+        if (h - tail.get() >= CAPACITY) {
+            dropped.incrementAndGet();
+            totalDropped.incrementAndGet();
+            return;
+        }
+        ring.set((int) (h % CAPACITY), toJson(event));
+        head.set(h + 1);
+        Thread waiting = reader;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    private ObjectNode toJson(AccessibilityEvent event) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("t", event.getEventTime());
+        node.put("type", AccessibilityEvent.eventTypeToString(event.getEventType()));
+        if (event.getPackageName() != null) {
+            node.put("pkg", event.getPackageName().toString());
+        }
+        if (event.getClassName() != null) {
+            node.put("cls", event.getClassName().toString());
+        }
+        List<CharSequence> texts = event.getText();
+        if (!texts.isEmpty()) {
+            StringBuilder text = new StringBuilder();
+            for (CharSequence t : texts) {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(t);
+            }
+            node.put("text", text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text.toString());
+        }
+        return node;
+    }
+
+    /**
+     * @return the next event as one line of JSON, an empty object when nothing came within the
+     * timeout, or null once closed
+     */
+    String next(long timeout) {
+        reader = Thread.currentThread();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!closed) {
+                long t = tail.get();
+                if (t < head.get()) {
+                    int index = (int) (t % CAPACITY);
+                    ObjectNode node = ring.get(index);
+                    ring.set(index, null);
+                    tail.set(t + 1);
+                    long lost = dropped.get();
+                    if (lost != droppedReported) {
+                        node.put("dropped", lost - droppedReported);
+                        droppedReported = lost;
+                    }
+                    return node.toString();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return "{}";
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return null;
+        } finally {
+            reader = null;
+        }
+    }
+
+    /**
+     * The events as newline delimited JSON, for a chunked HTTP response. An empty object is sent
+     * when the stream is idle, so a gone client is noticed. Closing it ends the subscription.
+     */
+    InputStream toInputStream() {
+        return new InputStream() {
+            private byte[] line = new byte[0];
+            private int position = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= line.length) {
+                    String next = next(IDLE_LINE_INTERVAL);
+                    if (next == null) {
+                        return -1;
+                    }
+                    line = (next + "\n").getBytes(StandardCharsets.UTF_8);
+                    position = 0;
+                }
+                int count = Math.min(len, line.length - position);
+                System.arraycopy(line, position, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close() {
+                EventSubscription.this.close();
+            }
+        };
+    }
+}
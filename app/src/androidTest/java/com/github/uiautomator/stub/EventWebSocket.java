@@ -0,0 +1,69 @@
+package com.github.uiautomator.stub;
+
+import java.io.IOException;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+
+/**
+ * Sends the events of an {@link EventSubscription} as text frames, one event per frame. The filter
+ * is given by the query string of the upgrade request, messages from the client are ignored.
+ */
+class EventWebSocket extends NanoWSD.WebSocket {
+    private static final long POLL_INTERVAL = 1000;
+
+    private final EventSubscription subscription;
+    private final AutomatorHttpServer server;
+
+    EventWebSocket(NanoHTTPD.IHTTPSession handshake, EventFilter filter, AutomatorHttpServer server) {
+        super(handshake);
+        this.subscription = new EventSubscription(filter);
+        this.server = server;
+    }
+
+    @Override
+    protected void onOpen() {
+        Log.d("event websocket opened: " + getHandshakeRequest().getQueryParameterString());
+        subscription.start();
+        server.onWebSocketOpen(this);
+        Thread sender = new Thread("EventWebSocket") {
+            @Override
+            public void run() {
+                String event;
+                while ((event = subscription.next(POLL_INTERVAL)) != null) {
+                    if ("{}".equals(event) || !isOpen()) {
+                        continue;
+                    }
+                    try {
+                        send(event);
+                    } catch (IOException e) {
+                        Log.d("event websocket send failed: " + e);
+                        subscription.close();
+                    }
+                }
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    protected void onClose(NanoWSD.WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+        Log.d("event websocket closed: " + code + " " + reason + ", dropped " + subscription.getDropped());
+        subscription.close();
+        server.onWebSocketClose(this);
+    }
+
+    @Override
+    protected void onMessage(NanoWSD.WebSocketFrame message) {
+    }
+
+    @Override
+    protected void onPong(NanoWSD.WebSocketFrame pong) {
+    }
+
+    @Override
+    protected void onException(IOException exception) {
+        Log.d("event websocket error: " + exception);
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.uiautomator.stub;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of the window hierarchy between two versions of a hierarchy session.
+ * When full is true the client must drop its copy, added then holds every node.
+ */
+public class HierarchyDiff {
+    private long _version;
+    private long _baseVersion;
+    private boolean _full;
+    private List<SnapshotNode> _added = new ArrayList<>();
+    private List<SnapshotNode> _changed = new ArrayList<>();
+    private List<Integer> _removed = new ArrayList<>();
+
+    public long getVersion() {
+        return _version;
+    }
+
+    public void setVersion(long version) {
+        this._version = version;
+    }
+
+    public long getBaseVersion() {
+        return _baseVersion;
+    }
+
+    public void setBaseVersion(long baseVersion) {
+        this._baseVersion = baseVersion;
+    }
+
+    public boolean isFull() {
+        return _full;
+    }
+
+    public void setFull(boolean full) {
+        this._full = full;
+    }
+
+    public List<SnapshotNode> getAdded() {
+        return _added;
+    }
+
+    public void setAdded(List<SnapshotNode> added) {
+        this._added = added;
+    }
+
+    public List<SnapshotNode> getChanged() {
+        return _changed;
+    }
+
+    public void setChanged(List<SnapshotNode> changed) {
+        this._changed = changed;
+    }
+
+    public List<Integer> getRemoved() {
+        return _removed;
+    }
+
+    public void setRemoved(List<Integer> removed) {
+        this._removed = removed;
+    }
+
+    boolean isEmpty() {
+        return _added.isEmpty() && _changed.isEmpty() && _removed.isEmpty();
+    }
+}
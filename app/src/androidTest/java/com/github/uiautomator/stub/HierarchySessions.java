@@ -0,0 +1,278 @@
+package com.github.uiautomator.stub;
+
+import android.app.UiAutomation;
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.test.uiautomator.UiDevice;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hierarchy sessions let a client keep a copy of the window hierarchy up to date by
+ * fetching only what changed since the version it holds.
+ * <p>
+ * While sessions are open the accessibility events are used to find which subtrees are
+ * dirty: content changes and view events re-walk the parent of their source node, window
+ * changes (or too many pending events) re-walk everything.
+ */
+class HierarchySessions implements UiAutomation.OnAccessibilityEventListener {
+    private static final int MAX_SESSIONS = 16;
+    private static final int MAX_PENDING_EVENTS = 64;
+    private static final long SESSION_IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    private static final int SUBTREE_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SCROLLED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SELECTED
+            | AccessibilityEvent.TYPE_VIEW_FOCUSED
+            | AccessibilityEvent.TYPE_VIEW_CLICKED
+            | AccessibilityEvent.TYPE_VIEW_LONG_CLICKED;
+    private static final int WINDOW_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+
+    private final UiDevice device;
+    private final AccessibilityEventListener events;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    HierarchySessions(UiDevice device, AccessibilityEventListener events) {
+        this.device = device;
+        this.events = events;
+    }
+
+    String open() {
+        expireIdleSessions();
+        String id = UUID.randomUUID().toString();
+        // the sessions and the subscription change together, so an open session always gets the events
+        synchronized (sessions) {
+            if (sessions.size() >= MAX_SESSIONS) {
+                throw new IllegalStateException("Too many hierarchy sessions, close unused ones first");
+            }
+            sessions.put(id, new Session());
+            events.addSubscriber(this);
+        }
+        return id;
+    }
+
+    boolean close(String id) {
+        synchronized (sessions) {
+            boolean removed = sessions.remove(id) != null;
+            if (sessions.isEmpty()) {
+                events.removeSubscriber(this);
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * @param sinceVersion the version the client holds, 0 if it holds nothing
+     */
+    HierarchyDiff getDiff(String id, long sinceVersion) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            throw new IllegalArgumentException("Unknown hierarchy session: " + id);
+        }
+        return session.getDiff(sinceVersion);
+    }
+
+    private void expireIdleSessions() {
+        long now = SystemClock.uptimeMillis();
+        synchronized (sessions) {
+            Iterator<Map.Entry<String, Session>> it = sessions.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Session> entry = it.next();
+                if (now - entry.getValue().lastAccess > SESSION_IDLE_TIMEOUT) {
+                    Log.i("Expire idle hierarchy session " + entry.getKey());
+                    it.remove();
+                }
+            }
+            if (sessions.isEmpty()) {
+                events.removeSubscriber(this);
+            }
+        }
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        int type = event.getEventType();
+        if ((type & WINDOW_EVENT_TYPES) != 0) {
+            for (Session session : sessions.values()) {
+                session.markFullDirty();
+            }
+        } else if ((type & SUBTREE_EVENT_TYPES) != 0) {
+            AccessibilityEvent copy = copyEvent(event);
+            for (Session session : sessions.values()) {
+                session.markDirty(copy);
+            }
+        }
+    }
+
+    /**
+     * The event passed to the listener must not be kept, getSource() is resolved later.
+     */
+    @SuppressWarnings("deprecation")
+    private static AccessibilityEvent copyEvent(AccessibilityEvent event) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return new AccessibilityEvent(event);
+        }
+        return AccessibilityEvent.obtain(event);
+    }
+
+    static HierarchyDiff compare(List<SnapshotNode> before, List<SnapshotNode> after) {
+        Map<Integer, SnapshotNode> old = new LinkedHashMap<>(before.size() * 2);
+        for (SnapshotNode node : before) {
+            old.put(node.getId(), node);
+        }
+        HierarchyDiff diff = new HierarchyDiff();
+        for (SnapshotNode node : after) {
+            SnapshotNode previous = old.remove(node.getId());
+            if (previous == null) {
+                diff.getAdded().add(node);
+            } else if (!previous.sameAs(node)) {
+                diff.getChanged().add(node);
+            }
+        }
+        diff.getRemoved().addAll(old.keySet());
+        return diff;
+    }
+
+    private class Session {
+        private HierarchySnapshot snapshot;
+        private long version = 0;
+        private boolean fullDirty = true;
+        private List<AccessibilityEvent> pending = new ArrayList<>();
+        private volatile long lastAccess = SystemClock.uptimeMillis();
+        // Guards pending and fullDirty, the event thread must not wait for a walk.
+        private final Object pendingLock = new Object();
+
+        void markFullDirty() {
+            synchronized (pendingLock) {
+                fullDirty = true;
+                pending.clear();
+            }
+        }
+
+        void markDirty(AccessibilityEvent event) {
+            synchronized (pendingLock) {
+                if (fullDirty) {
+                    return;
+                }
+                if (pending.size() >= MAX_PENDING_EVENTS) {
+                    fullDirty = true;
+                    pending.clear();
+                    return;
+                }
+                pending.add(event);
+            }
+        }
+
+        synchronized HierarchyDiff getDiff(long sinceVersion) {
+            lastAccess = SystemClock.uptimeMillis();
+            long baseVersion = version;
+            HierarchyDiff diff = refresh();
+            if (!diff.isEmpty()) {
+                version++;
+            }
+            if (sinceVersion != baseVersion || baseVersion == 0) {
+                // The client does not hold the previous version, send everything.
+                diff = new HierarchyDiff();
+                diff.setFull(true);
+                diff.getAdded().addAll(snapshot.getNodes());
+            }
+            diff.setBaseVersion(sinceVersion);
+            diff.setVersion(version);
+            return diff;
+        }
+
+        /**
+         * Bring the snapshot up to date.
+         *
+         * @return the changes made to the snapshot
+         */
+        private HierarchyDiff refresh() {
+            List<AccessibilityEvent> events;
+            boolean full;
+            synchronized (pendingLock) {
+                events = pending;
+                full = fullDirty || snapshot == null;
+                pending = new ArrayList<>();
+                fullDirty = false;
+            }
+            if (!full) {
+                Map<Integer, AccessibilityNodeInfo> roots = dirtyRoots(events);
+                if (roots != null) {
+                    return refreshSubtrees(roots);
+                }
+            }
+            HierarchySnapshot updated = HierarchySnapshot.capture(device);
+            HierarchyDiff diff = compare(snapshot == null ? new ArrayList<SnapshotNode>() : snapshot.getNodes(),
+                    updated.getNodes());
+            snapshot = updated;
+            return diff;
+        }
+
+        /**
+         * @return the live nodes to re-walk keyed by snapshot id, or null if a full walk is needed
+         */
+        private Map<Integer, AccessibilityNodeInfo> dirtyRoots(List<AccessibilityEvent> events) {
+            Map<Integer, AccessibilityNodeInfo> roots = new LinkedHashMap<>();
+            for (AccessibilityEvent event : events) {
+                AccessibilityNodeInfo source = event.getSource();
+                if (source == null) {
+                    return null;
+                }
+                // A change of the source might have moved its siblings, so re-walk from the parent.
+                AccessibilityNodeInfo parent = source.getParent();
+                AccessibilityNodeInfo target = parent != null ? parent : source;
+                // a colliding hash code may point at another node, walk everything then
+                SnapshotNode node = snapshot.getByHashCode(target.hashCode());
+                if (node == null) {
+                    return null;
+                }
+                roots.put(node.getId(), target);
+            }
+            // Drop the roots already covered by another dirty root.
+            Iterator<Integer> it = roots.keySet().iterator();
+            while (it.hasNext()) {
+                SnapshotNode node = snapshot.getParent(snapshot.get(it.next()));
+                while (node != null) {
+                    if (roots.containsKey(node.getId())) {
+                        it.remove();
+                        break;
+                    }
+                    node = snapshot.getParent(node);
+                }
+            }
+            return roots;
+        }
+
+        private HierarchyDiff refreshSubtrees(Map<Integer, AccessibilityNodeInfo> roots) {
+            int width = device.getDisplayWidth();
+            int height = device.getDisplayHeight();
+            List<SnapshotNode> before = new ArrayList<>();
+            List<SnapshotNode> after = new ArrayList<>();
+            HierarchySnapshot updated = snapshot;
+            for (Map.Entry<Integer, AccessibilityNodeInfo> entry : roots.entrySet()) {
+                SnapshotNode replaced = updated.get(entry.getKey());
+                Set<Integer> ambiguousIds = new HashSet<>();
+                List<SnapshotNode> subtree = updated.captureSubtree(entry.getValue(), replaced, width, height, ambiguousIds);
+                before.addAll(updated.subtree(replaced));
+                after.addAll(subtree);
+                updated = updated.replaceSubtree(replaced.getId(), subtree, ambiguousIds);
+            }
+            snapshot = updated;
+            return compare(before, after);
+        }
+    }
+}
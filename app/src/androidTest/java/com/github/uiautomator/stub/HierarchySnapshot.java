@@ -0,0 +1,242 @@
+package com.github.uiautomator.stub;
+
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.uiautomator.UiDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable copy of the visible window hierarchy. Nodes are kept in document order,
+ * the descendants of a node directly follow it, so a subtree is a contiguous range.
+ */
+public class HierarchySnapshot {
+    static final int NO_PARENT = -1;
+
+    private final List<SnapshotNode> nodes;
+    private final Map<Integer, Integer> positions;
+    private final Map<Integer, List<SnapshotNode>> children;
+    private final List<SnapshotNode> roots = new ArrayList<>();
+    private final int activeRootId;
+    private final long capturedAt;
+    // the hash codes which collided and the derived ids, see allocateId
+    private final Set<Integer> ambiguousIds;
+
+    HierarchySnapshot(List<SnapshotNode> nodes, int activeRootId, long capturedAt, Set<Integer> ambiguousIds) {
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.positions = new HashMap<>(nodes.size() * 2);
+        this.children = new HashMap<>(nodes.size() * 2);
+        for (int i = 0; i < nodes.size(); i++) {
+            SnapshotNode node = nodes.get(i);
+            positions.put(node.getId(), i);
+            if (node.getParentId() == NO_PARENT) {
+                roots.add(node);
+                continue;
+            }
+            List<SnapshotNode> siblings = children.get(node.getParentId());
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                children.put(node.getParentId(), siblings);
+            }
+            siblings.add(node);
+        }
+        this.activeRootId = activeRootId;
+        this.capturedAt = capturedAt;
+        this.ambiguousIds = ambiguousIds;
+    }
+
+    /**
+     * Walk all the window roots and copy every visible node.
+     */
+    static HierarchySnapshot capture(UiDevice device) {
+        return capture(device, true);
+    }
+
+    /**
+     * @param allWindows false to copy the active window only, enough for the UiSelector queries
+     */
+    static HierarchySnapshot capture(UiDevice device, boolean allWindows) {
+        long start = PhaseRecorder.start();
+        int width = device.getDisplayWidth();
+        int height = device.getDisplayHeight();
+        List<SnapshotNode> nodes = new ArrayList<>();
+        Set<Integer> ids = new HashSet<>();
+        Set<Integer> ambiguousIds = new HashSet<>();
+        AccessibilityNodeInfo[] roots;
+        AccessibilityNodeInfo activeRoot;
+        if (allWindows) {
+            roots = AccessibilityNodeInfoDumper.getWindowRoots(device, PhaseRecorder.SNAPSHOT);
+            activeRoot = InstrumentationRegistry.getInstrumentation().getUiAutomation().getRootInActiveWindow();
+        } else {
+            device.waitForIdle();
+            PhaseRecorder.record(PhaseRecorder.SNAPSHOT + PhaseRecorder.WAIT_FOR_IDLE, start);
+            activeRoot = InstrumentationRegistry.getInstrumentation().getUiAutomation().getRootInActiveWindow();
+            roots = activeRoot == null ? new AccessibilityNodeInfo[0] : new AccessibilityNodeInfo[] {activeRoot};
+        }
+        int activeRootId = NO_PARENT;
+        long walkStart = PhaseRecorder.start();
+        NodeTraversal traversal = new NodeTraversal(NodeTraversal.SNAPSHOT);
+        for (AccessibilityNodeInfo root : roots) {
+            int id = allocateId(root, ids, ambiguousIds);
+            if (root.equals(activeRoot)) {
+                activeRootId = id;
+            }
+            captureRec(traversal, root, id, NO_PARENT, 0, 0, width, height, nodes, ids, ambiguousIds);
+        }
+        traversal.finish();
+        PhaseRecorder.record(PhaseRecorder.SNAPSHOT_WALK, walkStart, nodes.size());
+        PhaseRecorder.record(PhaseRecorder.SNAPSHOT, start, nodes.size());
+        return new HierarchySnapshot(nodes, activeRootId, SystemClock.uptimeMillis(), ambiguousIds);
+    }
+
+    /**
+     * Copy the subtree of a live node which replaces the given node of this snapshot.
+     * The root of the subtree keeps the id and the position of the replaced node.
+     *
+     * @param ambiguousIds receives the ids made ambiguous by the copy, to give to {@link #replaceSubtree}
+     */
+    List<SnapshotNode> captureSubtree(AccessibilityNodeInfo live, SnapshotNode replaced, int width, int height,
+            Set<Integer> ambiguousIds) {
+        Set<Integer> ids = new HashSet<>(positions.keySet());
+        for (SnapshotNode n : subtree(replaced)) {
+            ids.remove(n.getId());
+        }
+        ids.add(replaced.getId());
+        List<SnapshotNode> out = new ArrayList<>();
+        NodeTraversal traversal = new NodeTraversal(NodeTraversal.SNAPSHOT_SUBTREE);
+        captureRec(traversal, live, replaced.getId(), replaced.getParentId(), replaced.getIndex(), replaced.getDepth(),
+                width, height, out, ids, ambiguousIds);
+        traversal.finish();
+        return out;
+    }
+
+    private static void captureRec(NodeTraversal traversal, AccessibilityNodeInfo node, int id, int parentId,
+            int index, int depth, int width, int height, List<SnapshotNode> out, Set<Integer> ids,
+            Set<Integer> ambiguousIds) {
+        out.add(new SnapshotNode(node, id, parentId, index, depth, width, height));
+        int count = node.getChildCount();
+        for (int i = 0; i < count; i++) {
+            AccessibilityNodeInfo child = traversal.getChild(node, i);
+            if (child == null) {
+                continue;
+            }
+            if (child.isVisibleToUser()) {
+                captureRec(traversal, child, allocateId(child, ids, ambiguousIds), id, i, depth + 1, width, height,
+                        out, ids, ambiguousIds);
+            }
+            child.recycle();
+        }
+    }
+
+    /**
+     * AccessibilityNodeInfo.hashCode is computed from the window and the source view,
+     * which makes it a stable id for the same view. Collisions get a derived id; both the hash code
+     * and the derived id are then ambiguous, a live node with that hash code may not be the node
+     * with that id.
+     */
+    static int allocateId(AccessibilityNodeInfo node, Set<Integer> ids, Set<Integer> ambiguousIds) {
+        int hash = node.hashCode();
+        int id = hash;
+        while (id == NO_PARENT || !ids.add(id)) {
+            id = id * 31 + 1;
+        }
+        if (id != hash) {
+            ambiguousIds.add(hash);
+            ambiguousIds.add(id);
+        }
+        return id;
+    }
+
+    public List<SnapshotNode> getNodes() {
+        return nodes;
+    }
+
+    public long getCapturedAt() {
+        return capturedAt;
+    }
+
+    public boolean contains(int id) {
+        return positions.containsKey(id);
+    }
+
+    public SnapshotNode get(int id) {
+        Integer pos = positions.get(id);
+        return pos == null ? null : nodes.get(pos);
+    }
+
+    /**
+     * @return the node of a live node by its hash code, null if it is not in the snapshot or if
+     *         the hash code is ambiguous
+     */
+    SnapshotNode getByHashCode(int hashCode) {
+        return ambiguousIds.contains(hashCode) ? null : get(hashCode);
+    }
+
+    public SnapshotNode getParent(SnapshotNode node) {
+        return get(node.getParentId());
+    }
+
+    /**
+     * @return the node followed by all its descendants
+     */
+    public List<SnapshotNode> subtree(SnapshotNode node) {
+        int start = positions.get(node.getId());
+        return nodes.subList(start, subtreeEnd(start));
+    }
+
+    public List<SnapshotNode> descendants(SnapshotNode node) {
+        int start = positions.get(node.getId());
+        return nodes.subList(start + 1, subtreeEnd(start));
+    }
+
+    public List<SnapshotNode> children(SnapshotNode node) {
+        List<SnapshotNode> result = children.get(node.getId());
+        return result == null ? Collections.<SnapshotNode>emptyList() : result;
+    }
+
+    /**
+     * @return the roots of all the windows
+     */
+    public List<SnapshotNode> getRoots() {
+        return roots;
+    }
+
+    /**
+     * @return the root of the active window, the one searched by UiSelector queries, or null
+     */
+    public SnapshotNode getActiveRoot() {
+        return get(activeRootId);
+    }
+
+    private int subtreeEnd(int start) {
+        int depth = nodes.get(start).getDepth();
+        int end = start + 1;
+        while (end < nodes.size() && nodes.get(end).getDepth() > depth) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @return a new snapshot where the subtree of the node with the given id is replaced
+     */
+    HierarchySnapshot replaceSubtree(int id, List<SnapshotNode> subtree, Set<Integer> subtreeAmbiguousIds) {
+        int start = positions.get(id);
+        int end = subtreeEnd(start);
+        List<SnapshotNode> result = new ArrayList<>(nodes.size() - (end - start) + subtree.size());
+        result.addAll(nodes.subList(0, start));
+        result.addAll(subtree);
+        result.addAll(nodes.subList(end, nodes.size()));
+        Set<Integer> ambiguous = new HashSet<>(ambiguousIds);
+        ambiguous.addAll(subtreeAmbiguousIds);
+        return new HierarchySnapshot(result, activeRootId, SystemClock.uptimeMillis(), ambiguous);
+    }
+}
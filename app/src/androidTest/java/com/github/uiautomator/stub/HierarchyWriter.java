@@ -0,0 +1,31 @@
+package com.github.uiautomator.stub;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives the nodes visited by {@link AccessibilityNodeInfoDumper} in document order.
+ * Every {@link #startNode} is matched by an {@link #endNode} after the node's children.
+ */
+interface HierarchyWriter {
+    void startHierarchy(int rotation, int width, int height) throws IOException;
+
+    void startNode(AccessibilityNodeInfo node, int index, int width, int height) throws IOException;
+
+    void endNode() throws IOException;
+
+    void endHierarchy() throws IOException;
+
+    /**
+     * A writer of the nodes of one window into a buffer of its own, so that the windows can be
+     * walked and serialized in parallel. It gets no startHierarchy, its endHierarchy only flushes.
+     */
+    HierarchyWriter newWindowWriter(OutputStream out) throws IOException;
+
+    /**
+     * Add the output of a {@link #newWindowWriter} after its endHierarchy, in window order.
+     */
+    void writeWindow(byte[] data, int length) throws IOException;
+}
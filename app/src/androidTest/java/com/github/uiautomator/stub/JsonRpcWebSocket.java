@@ -0,0 +1,169 @@
+package com.github.uiautomator.stub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.googlecode.jsonrpc4j.JsonRpcServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoWSD;
+
+/**
+ * One long-lived JSON-RPC connection. Each text frame is a request (or a batch), the response is
+ * sent back as a text frame matched by its id. The calls take a worker of the server like the
+ * HTTP requests ({@link AutomatorHttpServer#executeWebSocketCall}) and each response is sent as
+ * soon as its call completes, so a long call (e.g. waitForExists) does not hold back the next
+ * ones. When the workers and their queue are full, a call is answered with an error.
+ * <p>
+ * The server also pushes {@link Notifications} as JSON-RPC notifications (requests without id).
+ * The frames are queued and written by one sender thread per connection, so a slow client never
+ * blocks the thread publishing the notification. Notifications are dropped when the queue is full.
+ */
+class JsonRpcWebSocket extends NanoWSD.WebSocket implements Notifications.Listener {
+    private static final int MAX_QUEUED_FRAMES = 256;
+    private static final long RESPONSE_QUEUE_TIMEOUT = 10000;
+    private static final int TOO_MANY_CALLS_ERROR_CODE = -32000;
+
+    private final JsonRpcServer jsonRpcServer;
+    private final AutomatorHttpServer server;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final LinkedBlockingQueue<String> outbox = new LinkedBlockingQueue<>(MAX_QUEUED_FRAMES);
+    private volatile boolean closed = false;
+
+    JsonRpcWebSocket(NanoHTTPD.IHTTPSession handshake, JsonRpcServer jsonRpcServer, AutomatorHttpServer server) {
+        super(handshake);
+        this.jsonRpcServer = jsonRpcServer;
+        this.server = server;
+    }
+
+    @Override
+    protected void onOpen() {
+        Log.d("websocket opened: " + getHandshakeRequest().getUri());
+        Thread sender = new Thread("JsonRpcWebSocket") {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+        Notifications.addListener(this);
+        server.onWebSocketOpen(this);
+    }
+
+    @Override
+    protected void onClose(NanoWSD.WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+        Log.d("websocket closed: " + code + " " + reason);
+        closed = true;
+        Notifications.removeListener(this);
+        outbox.clear();
+        server.onWebSocketClose(this);
+    }
+
+    @Override
+    protected void onMessage(NanoWSD.WebSocketFrame message) {
+        final String request = message.getTextPayload();
+        server.executeWebSocketCall(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                try {
+                    jsonRpcServer.handleRequest(new ByteArrayInputStream(request.getBytes(StandardCharsets.UTF_8)), os);
+                } catch (IOException e) {
+                    Log.e("websocket request failed: " + e);
+                    return;
+                }
+                if (os.size() > 0) {
+                    queueResponse(new String(os.toByteArray(), StandardCharsets.UTF_8));
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                if (!closed) {
+                    queueResponse(tooManyCallsError(request).toString());
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onPong(NanoWSD.WebSocketFrame pong) {
+    }
+
+    @Override
+    protected void onException(IOException exception) {
+        Log.d("websocket error: " + exception);
+    }
+
+    @Override
+    public void onNotification(String method, Map<String, Object> params) {
+        ObjectNode notification = mapper.createObjectNode();
+        notification.put("jsonrpc", "2.0");
+        notification.put("method", method);
+        notification.set("params", mapper.valueToTree(params));
+        if (!closed && !outbox.offer(notification.toString())) {
+            Log.d("websocket too slow, notification dropped: " + method);
+        }
+    }
+
+    /**
+     * Called by the call threads, which wait for room in the queue rather than losing a response.
+     */
+    private void queueResponse(String payload) {
+        try {
+            if (!outbox.offer(payload, RESPONSE_QUEUE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.d("websocket too slow, response dropped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendLoop() {
+        while (!closed) {
+            String payload;
+            try {
+                payload = outbox.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (payload == null || !isOpen()) {
+                continue;
+            }
+            try {
+                send(payload);
+            } catch (IOException e) {
+                Log.d("websocket send failed: " + e);
+            }
+        }
+    }
+
+    private ObjectNode tooManyCallsError(String request) {
+        ObjectNode error = mapper.createObjectNode();
+        error.put("code", TOO_MANY_CALLS_ERROR_CODE);
+        error.put("message", "Server busy, retry later");
+        ObjectNode response = mapper.createObjectNode();
+        response.put("jsonrpc", "2.0");
+        JsonNode id = null;
+        try {
+            id = mapper.readTree(request).get("id");
+        } catch (IOException e) {
+            // the id of an invalid request is null
+        }
+        response.set("id", id);
+        response.set("error", error);
+        return response;
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.uiautomator.stub;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The children lookups of one walk of the hierarchy (a dump, a snapshot...).
+ * <p>
+ * A child missing from the node cache is a binder call to the app. On API 33 and up the lookup
+ * asks the app to send the next descendants along with the child, depth first like our walks, so
+ * the following lookups are served by the cache. Older SDKs use the plain getChild.
+ * <p>
+ * The cache does not tell whether it was hit, so a lookup slower than REMOTE_FETCH_NANOS is counted
+ * as a binder fetch: a cache hit is a copy of a few microseconds, a binder call is much slower.
+ * The lookups may come from several threads.
+ */
+class NodeTraversal {
+    static final String DUMP = "dump";
+    static final String SUBTREE_DUMP = "subtreeDump";
+    static final String SNAPSHOT = "snapshot";
+    static final String SNAPSHOT_SUBTREE = "snapshotSubtree";
+
+    private static final long REMOTE_FETCH_NANOS = 50000;
+    private static final boolean PREFETCH = Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU;
+    private static final Map<String, Totals> totals = new LinkedHashMap<>();
+
+    private final String operation;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong fetchNanos = new AtomicLong();
+
+    NodeTraversal(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Same as {@link AccessibilityNodeInfo#getChild(int)}.
+     */
+    AccessibilityNodeInfo getChild(AccessibilityNodeInfo parent, int index) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        AccessibilityNodeInfo child = PREFETCH ? Api33Impl.getChild(parent, index) : parent.getChild(index);
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        lookups.incrementAndGet();
+        if (elapsed >= REMOTE_FETCH_NANOS) {
+            fetches.incrementAndGet();
+            fetchNanos.addAndGet(elapsed);
+        }
+        return child;
+    }
+
+    /**
+     * Add the counts of this walk to the stats of its operation.
+     */
+    void finish() {
+        synchronized (totals) {
+            Totals total = totals.get(operation);
+            if (total == null) {
+                total = new Totals();
+                totals.put(operation, total);
+            }
+            long walkFetches = fetches.get();
+            total.walks++;
+            total.lookups += lookups.get();
+            total.fetches += walkFetches;
+            total.fetchTime += fetchNanos.get() / 1000;
+            total.maxFetches = Math.max(total.maxFetches, walkFetches);
+            total.lastFetches = walkFetches;
+        }
+    }
+
+    static TraversalStats[] getStats() {
+        List<TraversalStats> list = new ArrayList<>();
+        synchronized (totals) {
+            for (Map.Entry<String, Totals> item : totals.entrySet()) {
+                Totals total = item.getValue();
+                TraversalStats stats = new TraversalStats();
+                stats.setOperation(item.getKey());
+                stats.setPrefetch(PREFETCH);
+                stats.setWalks(total.walks);
+                stats.setLookups(total.lookups);
+                stats.setFetches(total.fetches);
+                stats.setFetchTime(total.fetchTime);
+                stats.setMaxFetches(total.maxFetches);
+                stats.setLastFetches(total.lastFetches);
+                list.add(stats);
+            }
+        }
+        return list.toArray(new TraversalStats[0]);
+    }
+
+    private static class Totals {
+        long walks = 0;
+        long lookups = 0;
+        long fetches = 0;
+        long fetchTime = 0;
+        long maxFetches = 0;
+        long lastFetches = 0;
+    }
+
+    @RequiresApi(33)
+    static class Api33Impl {
+        private Api33Impl() {
+        }
+
+        static AccessibilityNodeInfo getChild(AccessibilityNodeInfo parent, int index) {
+            return parent.getChild(index, AccessibilityNodeInfo.FLAG_PREFETCH_DESCENDANTS_DEPTH_FIRST);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.uiautomator.stub;
+
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Server initiated notifications (toasts, watcher triggers, rotation), pushed to the clients
+ * connected with a WebSocket as JSON-RPC notifications.
+ */
+public class Notifications {
+    public static final String TOAST = "toast";
+    public static final String WATCHER_TRIGGERED = "watcherTriggered";
+    public static final String ROTATION = "rotation";
+
+    public interface Listener {
+        void onNotification(String method, Map<String, Object> params);
+    }
+
+    private static final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public static void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public static boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    public static void publish(String method, Map<String, Object> params) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onNotification(method, params);
+            } catch (RuntimeException e) {
+                Log.e("notification listener failed", e);
+            }
+        }
+    }
+}
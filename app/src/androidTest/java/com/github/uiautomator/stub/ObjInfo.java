@@ -44,6 +44,10 @@ public class ObjInfo {
 		return new ObjInfo(obj);
 	}
 
+	public static final ObjInfo getObjInfo(SnapshotNode node) {
+		return new ObjInfo(node);
+	}
+
 	private ObjInfo(UiObject obj) throws UiObjectNotFoundException {
 		this._bounds = Rect.from(obj.getBounds());
 		this._checkable = obj.isCheckable();
@@ -83,6 +87,33 @@ public class ObjInfo {
 		this._resourceName = obj.getResourceName();
 	}
 
+	private ObjInfo(SnapshotNode node) {
+		this._bounds = node.getBounds();
+		this._checkable = node.isCheckable();
+		this._checked = node.isChecked();
+		this._childCount = node.getChildCount();
+		this._clickable = node.isClickable();
+		this._contentDescription = emptyIfNull(node.getContentDescription());
+		this._enabled = node.isEnabled();
+		this._focusable = node.isFocusable();
+		this._focused = node.isFocused();
+		this._longClickable = node.isLongClickable();
+		this._packageName = emptyIfNull(node.getPackageName());
+		this._scrollable = node.isScrollable();
+		this._selected = node.isSelected();
+		this._text = emptyIfNull(node.getText());
+		this._visibleBounds = node.getVisibleBounds();
+		this._className = emptyIfNull(node.getClassName());
+		this._resourceName = node.getResourceName();
+	}
+
+	/**
+	 * The UiObject getters give "" for a missing text, description, class or package.
+	 */
+	private static String emptyIfNull(String value) {
+		return value == null ? "" : value;
+	}
+
 	private Rect _bounds;
 	private Rect _visibleBounds;
 	private int _childCount;
@@ -0,0 +1,160 @@
+package com.github.uiautomator.stub;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on latencies of the phases of the dumps, selector lookups, screenshots and input
+ * injections, unlike the Traces sections which only reach systrace.
+ * <p>
+ * Each phase keeps a histogram of power of two buckets of microseconds, so recording is a few
+ * atomic increments and the percentiles are known within a factor of two.
+ * The phase names are "operation.step", e.g. dump.walk; the operation alone is the whole call.
+ */
+class PhaseRecorder {
+    static final String DUMP = "dump";
+    static final String DUMP_WALK = "dump.walk";
+    static final String DUMP_SERIALIZE = "dump.serialize";
+    static final String SUBTREE_DUMP = "subtreeDump";
+    static final String SUBTREE_DUMP_WALK = "subtreeDump.walk";
+    static final String SUBTREE_DUMP_SERIALIZE = "subtreeDump.serialize";
+    static final String SNAPSHOT = "snapshot";
+    static final String SNAPSHOT_WALK = "snapshot.walk";
+    static final String SELECTOR_FIND = "selector.find";
+    static final String SELECTOR_MATCH = "selector.match";
+    // the whole exist, objInfo, click(Selector) and waitForExists/waitUntilGone calls, whether or
+    // not the snapshot cache is on; each check of a wait is also a selector.exist
+    static final String SELECTOR_EXIST = "selector.exist";
+    static final String SELECTOR_OBJ_INFO = "selector.objInfo";
+    static final String SELECTOR_CLICK = "selector.click";
+    static final String SELECTOR_WAIT = "selector.wait";
+    static final String SCREENSHOT_CAPTURE = "screenshot.capture";
+    static final String SCREENSHOT_ENCODE = "screenshot.encode";
+    static final String INPUT_TOUCH = "input.touch";
+    static final String INPUT_SWIPE = "input.swipe";
+    static final String INPUT_KEY = "input.key";
+    // appended to DUMP or SNAPSHOT by AccessibilityNodeInfoDumper.getWindowRoots
+    static final String WAIT_FOR_IDLE = ".waitForIdle";
+    static final String WINDOWS = ".windows";
+
+    // bucket i holds the times below 2^i microseconds, the last one everything above
+    private static final int BUCKETS = 32;
+    private static final ConcurrentHashMap<String, Phase> phases = new ConcurrentHashMap<>();
+
+    private PhaseRecorder() {
+    }
+
+    static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    static long record(String phase, long start) {
+        return record(phase, start, 0);
+    }
+
+    /**
+     * @param start  returned by {@link #start} or by the previous record
+     * @param nodes  nodes handled by the phase, 0 when it does not apply
+     * @return the end of this phase, the start of the next one
+     */
+    static long record(String phase, long start, long nodes) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        recordNanos(phase, now - start, nodes);
+        return now;
+    }
+
+    static void recordNanos(String phase, long nanos, long nodes) {
+        Phase p = phases.get(phase);
+        if (p == null) {
+            p = new Phase();
+            Phase previous = phases.putIfAbsent(phase, p);
+            if (previous != null) {
+                p = previous;
+            }
+        }
+        p.add(nanos / 1000, nodes);
+    }
+
+    /**
+     * @return the phases recorded since the last reset, by name
+     */
+    static PhaseStats[] getStats() {
+        List<PhaseStats> list = new ArrayList<>();
+        for (Map.Entry<String, Phase> item : new TreeMap<>(phases).entrySet()) {
+            list.add(item.getValue().toStats(item.getKey()));
+        }
+        return list.toArray(new PhaseStats[0]);
+    }
+
+    static void reset() {
+        phases.clear();
+    }
+
+    private static class Phase {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalTime = new AtomicLong();
+        final AtomicLong maxTime = new AtomicLong();
+        final AtomicLong nodes = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void add(long micros, long nodeCount) {
+            count.incrementAndGet();
+            totalTime.addAndGet(micros);
+            nodes.addAndGet(nodeCount);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+            long max = maxTime.get();
+            while (micros > max && !maxTime.compareAndSet(max, micros)) {
+                max = maxTime.get();
+            }
+        }
+
+        PhaseStats toStats(String name) {
+            long[] histogram = new long[BUCKETS];
+            long total = 0;
+            int last = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = buckets.get(i);
+                total += histogram[i];
+                if (histogram[i] > 0) {
+                    last = i;
+                }
+            }
+            long max = maxTime.get();
+            PhaseStats stats = new PhaseStats();
+            stats.setPhase(name);
+            stats.setCount(count.get());
+            stats.setTotalTime(totalTime.get());
+            stats.setMaxTime(max);
+            stats.setNodes(nodes.get());
+            stats.setP50(percentile(histogram, total, 0.50, max));
+            stats.setP90(percentile(histogram, total, 0.90, max));
+            stats.setP99(percentile(histogram, total, 0.99, max));
+            long[] trimmed = new long[last + 1];
+            System.arraycopy(histogram, 0, trimmed, 0, trimmed.length);
+            stats.setHistogram(trimmed);
+            return stats;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile, at most the max
+         */
+        private static long percentile(long[] histogram, long total, double fraction, long max) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.uiautomator.stub;
+
+/**
+ * Latencies of one phase recorded by {@link PhaseRecorder}, in microseconds.
+ */
+public class PhaseStats {
+    private String _phase;
+    private long _count;
+    private long _totalTime;
+    private long _maxTime;
+    private long _nodes;
+    private long _p50;
+    private long _p90;
+    private long _p99;
+    // the i-th entry counts the times below 2^i microseconds and not below 2^(i-1)
+    private long[] _histogram;
+
+    public String getPhase() {
+        return _phase;
+    }
+
+    public void setPhase(String phase) {
+        this._phase = phase;
+    }
+
+    public long getCount() {
+        return _count;
+    }
+
+    public void setCount(long count) {
+        this._count = count;
+    }
+
+    public long getTotalTime() {
+        return _totalTime;
+    }
+
+    public void setTotalTime(long totalTime) {
+        this._totalTime = totalTime;
+    }
+
+    public long getMaxTime() {
+        return _maxTime;
+    }
+
+    public void setMaxTime(long maxTime) {
+        this._maxTime = maxTime;
+    }
+
+    public long getNodes() {
+        return _nodes;
+    }
+
+    public void setNodes(long nodes) {
+        this._nodes = nodes;
+    }
+
+    public long getP50() {
+        return _p50;
+    }
+
+    public void setP50(long p50) {
+        this._p50 = p50;
+    }
+
+    public long getP90() {
+        return _p90;
+    }
+
+    public void setP90(long p90) {
+        this._p90 = p90;
+    }
+
+    public long getP99() {
+        return _p99;
+    }
+
+    public void setP99(long p99) {
+        this._p99 = p99;
+    }
+
+    public long[] getHistogram() {
+        return _histogram;
+    }
+
+    public void setHistogram(long[] histogram) {
+        this._histogram = histogram;
+    }
+}
@@ -0,0 +1,149 @@
+package com.github.uiautomator.stub;
+
+import android.os.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many requests run at the same time, so a burst of clients does not end up with
+ * dozens of threads contending on UiAutomation. Requests beyond the workers wait in a bounded
+ * queue, when the queue is full they are rejected and the client gets a 503.
+ */
+class RequestLimiter {
+    static final String ARG_WORKERS = "workers";
+    static final String ARG_QUEUE = "queue";
+    static final String ARG_CONNECTIONS = "connections";
+    static final int DEFAULT_WORKERS = 4;
+    static final int DEFAULT_QUEUE = 32;
+    static final int DEFAULT_CONNECTIONS = 64;
+    private static final long QUEUE_TIMEOUT = 30000;
+
+    private final int workers;
+    private final int queueCapacity;
+    private final Semaphore semaphore;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong fastLane = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalServiceNanos = new AtomicLong();
+    private final AtomicLong maxServiceNanos = new AtomicLong();
+
+    RequestLimiter(int workers, int queueCapacity) {
+        this.workers = Math.max(1, workers);
+        this.queueCapacity = Math.max(0, queueCapacity);
+        this.semaphore = new Semaphore(this.workers, true);
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    static int getInt(Bundle arguments, String key, int defaultValue) {
+        String value = arguments == null ? null : arguments.getString(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.e("invalid instrumentation argument " + key + "=" + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Wait for a worker.
+     *
+     * @return the permit to release when the request is done, null if the queue is full or the wait timed out
+     */
+    Permit tryAcquire() {
+        long start = System.nanoTime();
+        if (!semaphore.tryAcquire()) {
+            if (queued.incrementAndGet() > queueCapacity) {
+                queued.decrementAndGet();
+                rejected.incrementAndGet();
+                return null;
+            }
+            boolean acquired = false;
+            try {
+                acquired = semaphore.tryAcquire(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                queued.decrementAndGet();
+            }
+            if (!acquired) {
+                rejected.incrementAndGet();
+                return null;
+            }
+        }
+        long now = System.nanoTime();
+        record(totalWaitNanos, maxWaitNanos, now - start);
+        active.incrementAndGet();
+        return new Permit(now);
+    }
+
+    /**
+     * Count a request which does not need a worker (ping, screenshot, stats).
+     */
+    void countFastLane() {
+        fastLane.incrementAndGet();
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long value) {
+        total.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    Map<String, Object> getStats() {
+        long done = completed.get();
+        long accepted = done + active.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("workers", workers);
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("active", active.get());
+        stats.put("queued", queued.get());
+        stats.put("completed", done);
+        stats.put("rejected", rejected.get());
+        stats.put("fastLane", fastLane.get());
+        stats.put("avgQueueWaitMs", accepted == 0 ? 0 : totalWaitNanos.get() / accepted / 1000000.0);
+        stats.put("maxQueueWaitMs", maxWaitNanos.get() / 1000000.0);
+        stats.put("avgServiceMs", done == 0 ? 0 : totalServiceNanos.get() / done / 1000000.0);
+        stats.put("maxServiceMs", maxServiceNanos.get() / 1000000.0);
+        return stats;
+    }
+
+    class Permit {
+        private final long acquiredAt;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(long acquiredAt) {
+            this.acquiredAt = acquiredAt;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                record(totalServiceNanos, maxServiceNanos, System.nanoTime() - acquiredAt);
+                active.decrementAndGet();
+                completed.incrementAndGet();
+                semaphore.release();
+            }
+        }
+    }
+}
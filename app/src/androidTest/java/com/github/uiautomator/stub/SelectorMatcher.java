@@ -0,0 +1,191 @@
+package com.github.uiautomator.stub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates a {@link Selector} against a {@link HierarchySnapshot} without any binder call.
+ * <p>
+ * The search follows the rules of the UiAutomator QueryController: a depth first walk where
+ * a matched step continues with the next selector of the chain in the children ("child") or
+ * in the children of the parent ("sibling") of the matched node, and where the instance of
+ * every step counts its own matches in walk order.
+ */
+class SelectorMatcher {
+    private static final int RELATION_CHILD = 0;
+    private static final int RELATION_SIBLING = 1;
+
+    private final HierarchySnapshot snapshot;
+    private int visited = 0;
+
+    SelectorMatcher(HierarchySnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @param allWindows search all window roots like UiObject2, otherwise only the active window like UiObject
+     * @return the node the selector refers to, or null
+     */
+    SnapshotNode find(Selector selector, boolean allWindows) {
+        Selector leaf = selector.deepSelector();
+        int instance = (leaf.getMask() & Selector.MASK_INSTANCE) > 0 ? leaf.getInstance() : 0;
+        List<SnapshotNode> matches = findAll(selector, allWindows, instance + 1);
+        return instance < matches.size() ? matches.get(instance) : null;
+    }
+
+    /**
+     * Find the matches of the selector ignoring the instance of its last step, so the index in the
+     * returned list is the instance of the match.
+     *
+     * @param limit stop after that many matches
+     */
+    List<SnapshotNode> findAll(Selector selector, boolean allWindows, int limit) {
+        long start = PhaseRecorder.start();
+        visited = 0;
+        List<Step> steps = new ArrayList<>();
+        flatten(selector, RELATION_CHILD, steps);
+        List<SnapshotNode> out = new ArrayList<>();
+        if (allWindows) {
+            for (SnapshotNode root : snapshot.getRoots()) {
+                search(steps, 0, root, out, limit);
+                if (out.size() >= limit) {
+                    break;
+                }
+            }
+        } else {
+            SnapshotNode root = snapshot.getActiveRoot();
+            if (root != null) {
+                search(steps, 0, root, out, limit);
+            }
+        }
+        PhaseRecorder.record(PhaseRecorder.SELECTOR_MATCH, start, visited);
+        return out;
+    }
+
+    /**
+     * Same chain as Selector.toUiSelector: every child or sibling selector is appended to the end of the chain.
+     */
+    private static void flatten(Selector selector, int relation, List<Step> steps) {
+        steps.add(new Step(selector, relation));
+        String[] relations = selector.getChildOrSibling();
+        Selector[] selectors = selector.getChildOrSiblingSelector();
+        for (int i = 0; i < relations.length && i < selectors.length; i++) {
+            if ("child".equals(relations[i].toLowerCase())) {
+                flatten(selectors[i], RELATION_CHILD, steps);
+            } else if ("sibling".equals(relations[i].toLowerCase())) {
+                flatten(selectors[i], RELATION_SIBLING, steps);
+            }
+        }
+    }
+
+    private void search(List<Step> steps, int step, SnapshotNode node, List<SnapshotNode> out, int limit) {
+        visited++;
+        SnapshotNode from = node;
+        int next = step;
+        boolean leaf = step == steps.size() - 1;
+        if (steps.get(step).matches(node, leaf)) {
+            if (leaf) {
+                out.add(node);
+                if (out.size() >= limit) {
+                    return;
+                }
+            } else {
+                next = step + 1;
+                if (steps.get(next).relation == RELATION_SIBLING) {
+                    from = snapshot.getParent(node);
+                    if (from == null) {
+                        return;
+                    }
+                }
+            }
+        }
+        for (SnapshotNode child : snapshot.children(from)) {
+            search(steps, next, child, out, limit);
+            if (out.size() >= limit) {
+                return;
+            }
+        }
+    }
+
+    private static class Step {
+        final Selector selector;
+        final int relation;
+        final long mask;
+        final Pattern textPattern;
+        final Pattern classNamePattern;
+        final Pattern descriptionPattern;
+        final Pattern packageNamePattern;
+        final Pattern resourceIdPattern;
+        int instanceCount = 0;
+
+        Step(Selector selector, int relation) {
+            this.selector = selector;
+            this.relation = relation;
+            this.mask = selector.getMask();
+            this.textPattern = compile(Selector.MASK_TEXTMATCHES, selector.getTextMatches());
+            this.classNamePattern = compile(Selector.MASK_CLASSNAMEMATCHES, selector.getClassNameMatches());
+            this.descriptionPattern = compile(Selector.MASK_DESCRIPTIONMATCHES, selector.getDescriptionMatches());
+            this.packageNamePattern = compile(Selector.MASK_PACKAGENAMEMATCHES, selector.getPackageNameMatches());
+            this.resourceIdPattern = compile(Selector.MASK_RESOURCEIDMATCHES, selector.getResourceIdMatches());
+        }
+
+        private Pattern compile(long bit, String regex) {
+            // UiSelector compiles the patterns with DOTALL as well
+            return (mask & bit) > 0 ? Pattern.compile(regex, Pattern.DOTALL) : null;
+        }
+
+        private boolean has(long bit) {
+            return (mask & bit) > 0;
+        }
+
+        /**
+         * @param leaf the instance of the last step is handled by the caller
+         */
+        boolean matches(SnapshotNode node, boolean leaf) {
+            if (has(Selector.MASK_TEXT) && !same(node.getText(), selector.getText())) return false;
+            if (has(Selector.MASK_TEXTCONTAINS) && (node.getText() == null || !node.getText().contains(selector.getTextContains()))) return false;
+            if (has(Selector.MASK_TEXTSTARTSWITH) && (node.getText() == null || !node.getText().startsWith(selector.getTextStartsWith()))) return false;
+            if (has(Selector.MASK_TEXTMATCHES) && !matchesPattern(textPattern, node.getText())) return false;
+            if (has(Selector.MASK_CLASSNAME) && !same(node.getClassName(), selector.getClassName())) return false;
+            if (has(Selector.MASK_CLASSNAMEMATCHES) && !matchesPattern(classNamePattern, node.getClassName())) return false;
+            if (has(Selector.MASK_DESCRIPTION) && !same(node.getContentDescription(), selector.getDescription())) return false;
+            if (has(Selector.MASK_DESCRIPTIONCONTAINS) && (node.getContentDescription() == null || !node.getContentDescription().contains(selector.getDescriptionContains()))) return false;
+            if (has(Selector.MASK_DESCRIPTIONSTARTSWITH) && (node.getContentDescription() == null || !node.getContentDescription().startsWith(selector.getDescriptionStartsWith()))) return false;
+            if (has(Selector.MASK_DESCRIPTIONMATCHES) && !matchesPattern(descriptionPattern, node.getContentDescription())) return false;
+            if (has(Selector.MASK_PACKAGENAME) && !same(node.getPackageName(), selector.getPackageName())) return false;
+            if (has(Selector.MASK_PACKAGENAMEMATCHES) && !matchesPattern(packageNamePattern, node.getPackageName())) return false;
+            if (has(Selector.MASK_RESOURCEID) && !same(node.getResourceName(), selector.getResourceId())) return false;
+            if (has(Selector.MASK_RESOURCEIDMATCHES) && !matchesPattern(resourceIdPattern, node.getResourceName())) return false;
+            if (has(Selector.MASK_CHECKABLE) && node.isCheckable() != selector.isCheckable()) return false;
+            if (has(Selector.MASK_CHECKED) && node.isChecked() != selector.isChecked()) return false;
+            if (has(Selector.MASK_CLICKABLE) && node.isClickable() != selector.isClickable()) return false;
+            if (has(Selector.MASK_LONGCLICKABLE) && node.isLongClickable() != selector.isLongClickable()) return false;
+            if (has(Selector.MASK_SCROLLABLE) && node.isScrollable() != selector.isScrollable()) return false;
+            if (has(Selector.MASK_ENABLED) && node.isEnabled() != selector.isEnabled()) return false;
+            if (has(Selector.MASK_FOCUSABLE) && node.isFocusable() != selector.isFocusable()) return false;
+            if (has(Selector.MASK_FOCUSED) && node.isFocused() != selector.isFocused()) return false;
+            if (has(Selector.MASK_SELECTED) && node.isSelected() != selector.isSelected()) return false;
+            if (has(Selector.MASK_INDEX) && node.getIndex() != selector.getIndex()) return false;
+            if (leaf || !has(Selector.MASK_INSTANCE)) {
+                return true;
+            }
+            // Same as UiSelector.matchOrUpdateInstance, once the instance is reached every later match is accepted.
+            if (instanceCount == selector.getInstance()) {
+                return true;
+            }
+            if (selector.getInstance() > instanceCount) {
+                instanceCount++;
+            }
+            return false;
+        }
+
+        private static boolean same(String value, String expected) {
+            return value != null && value.equals(expected);
+        }
+
+        private static boolean matchesPattern(Pattern pattern, String value) {
+            return value != null && pattern.matcher(value).matches();
+        }
+    }
+}
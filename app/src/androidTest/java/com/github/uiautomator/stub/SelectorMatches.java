@@ -0,0 +1,33 @@
+package com.github.uiautomator.stub;
+
+/**
+ * All the instances matched by a selector, collected in one walk of the hierarchy.
+ */
+public class SelectorMatches {
+    private int _count;
+    private ObjInfo[] _items;
+
+    public SelectorMatches() {
+    }
+
+    public SelectorMatches(ObjInfo[] items) {
+        this._count = items.length;
+        this._items = items;
+    }
+
+    public int getCount() {
+        return _count;
+    }
+
+    public void setCount(int count) {
+        this._count = count;
+    }
+
+    public ObjInfo[] getItems() {
+        return _items;
+    }
+
+    public void setItems(ObjInfo[] items) {
+        this._items = items;
+    }
+}
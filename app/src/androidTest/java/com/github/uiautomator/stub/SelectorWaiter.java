@@ -0,0 +1,132 @@
+package com.github.uiautomator.stub;
+
+import android.app.UiAutomation;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+
+/**
+ * Waits for a selector to appear or disappear. The condition is checked again when an
+ * accessibility event reports a change of the hierarchy, instead of on a fixed interval.
+ * <p>
+ * Events about other packages are ignored when the selector is bound to a package, except the
+ * window changes. Some changes send no event (e.g. a WebView redrawing), so the condition is also
+ * polled with a growing interval, from MIN_POLL_INTERVAL to MAX_POLL_INTERVAL.
+ * <p>
+ * An animation or a list filling sends bursts of content events. They are coalesced: the condition
+ * is checked at most once every MIN_CHECK_INTERVAL, covering every event received meanwhile.
+ */
+class SelectorWaiter {
+    private static final long MIN_POLL_INTERVAL = 100;
+    private static final long MAX_POLL_INTERVAL = 1000;
+    private static final long MIN_CHECK_INTERVAL = 75;
+
+    private static final int CONTENT_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SCROLLED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SELECTED
+            | AccessibilityEvent.TYPE_VIEW_FOCUSED
+            | AccessibilityEvent.TYPE_VIEW_CLICKED;
+    private static final int WINDOW_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+
+    interface Condition {
+        boolean check();
+    }
+
+    private final AccessibilityEventListener events;
+
+    SelectorWaiter(AccessibilityEventListener events) {
+        this.events = events;
+    }
+
+    /**
+     * @param packageName only the events of this package wake the wait, null for all of them
+     * @return true if the condition became true before the timeout
+     */
+    boolean waitFor(Condition condition, String packageName, long timeout) {
+        if (condition.check()) {
+            return true;
+        }
+        if (timeout <= 0) {
+            return false;
+        }
+        Trigger trigger = new Trigger(packageName);
+        events.addSubscriber(trigger);
+        try {
+            long deadline = SystemClock.uptimeMillis() + timeout;
+            long pollInterval = MIN_POLL_INTERVAL;
+            long lastCheck = SystemClock.uptimeMillis();
+            while (true) {
+                long remaining = deadline - SystemClock.uptimeMillis();
+                if (remaining <= 0) {
+                    // one last look, an event may be on its way
+                    return condition.check();
+                }
+                if (trigger.await(Math.min(remaining, pollInterval))) {
+                    pollInterval = MIN_POLL_INTERVAL;
+                    long now = SystemClock.uptimeMillis();
+                    long delay = Math.min(lastCheck + MIN_CHECK_INTERVAL, deadline) - now;
+                    if (delay > 0) {
+                        // let the rest of the burst arrive, the check below covers it
+                        Thread.sleep(delay);
+                        trigger.clear();
+                    }
+                } else {
+                    pollInterval = Math.min(MAX_POLL_INTERVAL, pollInterval * 2);
+                }
+                boolean found = condition.check();
+                lastCheck = SystemClock.uptimeMillis();
+                if (found) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            events.removeSubscriber(trigger);
+        }
+    }
+
+    private static class Trigger implements UiAutomation.OnAccessibilityEventListener {
+        private final String packageName;
+        private boolean changed = false;
+
+        Trigger(String packageName) {
+            this.packageName = packageName;
+        }
+
+        @Override
+        public void onAccessibilityEvent(AccessibilityEvent event) {
+            int type = event.getEventType();
+            if ((type & WINDOW_EVENT_TYPES) == 0) {
+                if ((type & CONTENT_EVENT_TYPES) == 0) {
+                    return;
+                }
+                if (packageName != null && (event.getPackageName() == null || !packageName.contentEquals(event.getPackageName()))) {
+                    return;
+                }
+            }
+            synchronized (this) {
+                changed = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * @return true if woken by an event, false when the time elapsed
+         */
+        synchronized boolean await(long timeout) throws InterruptedException {
+            if (!changed) {
+                wait(timeout);
+            }
+            boolean result = changed;
+            changed = false;
+            return result;
+        }
+
+        synchronized void clear() {
+            changed = false;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.uiautomator.stub;
+
+import android.app.UiAutomation;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+
+import androidx.test.uiautomator.UiDevice;
+
+/**
+ * Keeps the last {@link HierarchySnapshot} for selector queries. A snapshot is reused until
+ * the timeout expires or an accessibility event reports a change of the hierarchy.
+ * <p>
+ * The timeout is 0 (disabled) by default, it is changed with setConfigurator.
+ */
+class SnapshotCache implements UiAutomation.OnAccessibilityEventListener {
+    private static final int INVALIDATING_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SCROLLED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_SELECTION_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_SELECTED
+            | AccessibilityEvent.TYPE_VIEW_FOCUSED
+            | AccessibilityEvent.TYPE_VIEW_CLICKED
+            | AccessibilityEvent.TYPE_VIEW_LONG_CLICKED;
+
+    private static volatile long timeout = 0;
+
+    private final UiDevice device;
+    private final AccessibilityEventListener events;
+    private HierarchySnapshot snapshot;
+    private long snapshotGeneration;
+    private volatile long generation = 0;
+    private boolean subscribed = false;
+
+    SnapshotCache(UiDevice device, AccessibilityEventListener events) {
+        this.device = device;
+        this.events = events;
+    }
+
+    public static long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param timeout how long in ms a snapshot may be reused, 0 to disable the cache
+     */
+    public static void setTimeout(long timeout) {
+        SnapshotCache.timeout = Math.max(0, timeout);
+    }
+
+    static boolean isEnabled() {
+        return timeout > 0;
+    }
+
+    /**
+     * @param allWindows false if only the active window is searched, then without the cache
+     *                   the other windows (status bar, navigation bar, IME...) are not walked
+     * @return a snapshot which is no older than the timeout and not invalidated since
+     */
+    synchronized HierarchySnapshot get(boolean allWindows) {
+        if (!isEnabled()) {
+            unsubscribe();
+            snapshot = null;
+            return HierarchySnapshot.capture(device, allWindows);
+        }
+        if (!subscribed) {
+            // Without the event feed a cached snapshot could not be trusted.
+            events.addSubscriber(this);
+            subscribed = true;
+            snapshot = null;
+        }
+        if (snapshot != null && snapshotGeneration == generation
+                && SystemClock.uptimeMillis() - snapshot.getCapturedAt() < timeout) {
+            return snapshot;
+        }
+        long current = generation;
+        snapshot = HierarchySnapshot.capture(device);
+        // An event received during the walk invalidates this snapshot for the next call.
+        snapshotGeneration = current;
+        return snapshot;
+    }
+
+    /**
+     * Drop the cached snapshot, used after an action which changes the screen.
+     */
+    void invalidate() {
+        generation++;
+    }
+
+    private void unsubscribe() {
+        if (subscribed) {
+            events.removeSubscriber(this);
+            subscribed = false;
+        }
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if ((event.getEventType() & INVALIDATING_EVENT_TYPES) != 0) {
+            invalidate();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.github.uiautomator.stub;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Objects;
+
+/**
+ * An immutable copy of the attributes of one AccessibilityNodeInfo, taken when a
+ * {@link HierarchySnapshot} is captured. The id is derived from the accessibility node
+ * identity, so the same view keeps its id across captures as long as it is alive.
+ */
+public class SnapshotNode {
+    private final int _id;
+    private final int _parentId;
+    private final int _index;
+    private final int _depth;
+    private final int _childCount;
+    private final String _text;
+    private final String _resourceName;
+    private final String _className;
+    private final String _packageName;
+    private final String _contentDescription;
+    private final boolean _checkable;
+    private final boolean _checked;
+    private final boolean _clickable;
+    private final boolean _enabled;
+    private final boolean _focusable;
+    private final boolean _focused;
+    private final boolean _scrollable;
+    private final boolean _longClickable;
+    private final boolean _password;
+    private final boolean _selected;
+    private final Rect _bounds;
+    private final Rect _visibleBounds;
+
+    SnapshotNode(AccessibilityNodeInfo node, int id, int parentId, int index, int depth, int width, int height) {
+        this._id = id;
+        this._parentId = parentId;
+        this._index = index;
+        this._depth = depth;
+        this._childCount = node.getChildCount();
+        this._text = toString(node.getText());
+        this._resourceName = node.getViewIdResourceName();
+        this._className = toString(node.getClassName());
+        this._packageName = toString(node.getPackageName());
+        this._contentDescription = toString(node.getContentDescription());
+        this._checkable = node.isCheckable();
+        this._checked = node.isChecked();
+        this._clickable = node.isClickable();
+        this._enabled = node.isEnabled();
+        this._focusable = node.isFocusable();
+        this._focused = node.isFocused();
+        this._scrollable = node.isScrollable();
+        this._longClickable = node.isLongClickable();
+        this._password = node.isPassword();
+        this._selected = node.isSelected();
+        android.graphics.Rect bounds = new android.graphics.Rect();
+        node.getBoundsInScreen(bounds);
+        this._bounds = Rect.from(bounds);
+        this._visibleBounds = Rect.from(AccessibilityNodeInfoHelper.getVisibleBoundsInScreen(node, width, height, false));
+    }
+
+    private static String toString(CharSequence cs) {
+        return cs == null ? null : cs.toString();
+    }
+
+    /**
+     * @return true if all the attributes, including the position in the tree, are equal
+     */
+    boolean sameAs(SnapshotNode other) {
+        return _id == other._id && _parentId == other._parentId && _index == other._index
+                && _depth == other._depth && _childCount == other._childCount
+                && Objects.equals(_text, other._text)
+                && Objects.equals(_resourceName, other._resourceName)
+                && Objects.equals(_className, other._className)
+                && Objects.equals(_packageName, other._packageName)
+                && Objects.equals(_contentDescription, other._contentDescription)
+                && _checkable == other._checkable && _checked == other._checked
+                && _clickable == other._clickable && _enabled == other._enabled
+                && _focusable == other._focusable && _focused == other._focused
+                && _scrollable == other._scrollable && _longClickable == other._longClickable
+                && _password == other._password && _selected == other._selected
+                && sameRect(_bounds, other._bounds) && sameRect(_visibleBounds, other._visibleBounds);
+    }
+
+    private static boolean sameRect(Rect a, Rect b) {
+        return a.getLeft() == b.getLeft() && a.getTop() == b.getTop()
+                && a.getRight() == b.getRight() && a.getBottom() == b.getBottom();
+    }
+
+    public int getId() {
+        return _id;
+    }
+
+    /**
+     * @return id of the parent node, -1 for a window root
+     */
+    public int getParentId() {
+        return _parentId;
+    }
+
+    public int getIndex() {
+        return _index;
+    }
+
+    public int getDepth() {
+        return _depth;
+    }
+
+    public int getChildCount() {
+        return _childCount;
+    }
+
+    public String getText() {
+        return _text;
+    }
+
+    public String getResourceName() {
+        return _resourceName;
+    }
+
+    public String getClassName() {
+        return _className;
+    }
+
+    public String getPackageName() {
+        return _packageName;
+    }
+
+    public String getContentDescription() {
+        return _contentDescription;
+    }
+
+    public boolean isCheckable() {
+        return _checkable;
+    }
+
+    public boolean isChecked() {
+        return _checked;
+    }
+
+    public boolean isClickable() {
+        return _clickable;
+    }
+
+    public boolean isEnabled() {
+        return _enabled;
+    }
+
+    public boolean isFocusable() {
+        return _focusable;
+    }
+
+    public boolean isFocused() {
+        return _focused;
+    }
+
+    public boolean isScrollable() {
+        return _scrollable;
+    }
+
+    public boolean isLongClickable() {
+        return _longClickable;
+    }
+
+    public boolean isPassword() {
+        return _password;
+    }
+
+    public boolean isSelected() {
+        return _selected;
+    }
+
+    public Rect getBounds() {
+        return _bounds;
+    }
+
+    public Rect getVisibleBounds() {
+        return _visibleBounds;
+    }
+}
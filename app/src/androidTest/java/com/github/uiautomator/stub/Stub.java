@@ -73,7 +73,8 @@ public class Stub {
         UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
         device.wakeUp();
 
-        JsonRpcServer jrs = new JsonRpcServer(new ObjectMapper(), new AutomatorServiceImpl(), AutomatorService.class);
+        AutomatorService automator = new AutomatorServiceImpl();
+        JsonRpcServer jrs = new JsonRpcServer(new ObjectMapper(), automator, AutomatorService.class);
         jrs.setShouldLogInvocationErrors(true);
         jrs.setErrorResolver(new ErrorResolver() {
             @Override
@@ -89,6 +90,8 @@ public class Stub {
             }
         });
         server.route("/jsonrpc/0", jrs);
+        server.setAutomator(automator);
+        server.configure(InstrumentationRegistry.getArguments());
         server.start();
     }
 
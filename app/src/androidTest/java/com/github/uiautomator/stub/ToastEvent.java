@@ -0,0 +1,53 @@
+package com.github.uiautomator.stub;
+
+/**
+ * A toast seen by {@link AccessibilityEventListener}, numbered in the order it was received.
+ */
+public class ToastEvent {
+    private long _seq;
+    private String _text;
+    private String _packageName;
+    private long _time;
+
+    public ToastEvent() {
+    }
+
+    public ToastEvent(long seq, String text, String packageName, long time) {
+        this._seq = seq;
+        this._text = text;
+        this._packageName = packageName;
+        this._time = time;
+    }
+
+    public long getSeq() {
+        return _seq;
+    }
+
+    public void setSeq(long seq) {
+        this._seq = seq;
+    }
+
+    public String getText() {
+        return _text;
+    }
+
+    public void setText(String text) {
+        this._text = text;
+    }
+
+    public String getPackageName() {
+        return _packageName;
+    }
+
+    public void setPackageName(String packageName) {
+        this._packageName = packageName;
+    }
+
+    public long getTime() {
+        return _time;
+    }
+
+    public void setTime(long time) {
+        this._time = time;
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.uiautomator.stub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The last CAPACITY toasts. Each one has a sequence number, so a client reads the toasts since
+ * the last one it saw and does not lose any of a fast sequence, as long as it keeps up.
+ */
+class ToastHistory {
+    private static final int CAPACITY = 64;
+
+    private final ToastEvent[] ring = new ToastEvent[CAPACITY];
+    // sequence number of the last toast, the first one is 1
+    private long lastSeq = 0;
+
+    void add(String text, String packageName, long time) {
+        ToastEvent toast;
+        synchronized (this) {
+            toast = new ToastEvent(++lastSeq, text, packageName, time);
+            ring[(int) (toast.getSeq() % CAPACITY)] = toast;
+            notifyAll();
+        }
+        if (Notifications.hasListeners()) {
+            Map<String, Object> params = new HashMap<>();
+            params.put("seq", toast.getSeq());
+            params.put("text", text);
+            params.put("packageName", packageName);
+            params.put("time", time);
+            Notifications.publish(Notifications.TOAST, params);
+        }
+    }
+
+    synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return the toasts after this sequence number still in the history, oldest first
+     */
+    synchronized ToastEvent[] since(long seq) {
+        long first = Math.max(seq + 1, lastSeq - CAPACITY + 1);
+        List<ToastEvent> toasts = new ArrayList<>();
+        for (long s = Math.max(1, first); s <= lastSeq; s++) {
+            toasts.add(ring[(int) (s % CAPACITY)]);
+        }
+        return toasts.toArray(new ToastEvent[0]);
+    }
+
+    /**
+     * Like {@link #since(long)}, but wait up to timeout ms for a toast when there is none yet.
+     */
+    synchronized ToastEvent[] await(long seq, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (lastSeq <= seq) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        return since(seq);
+    }
+}
@@ -35,7 +35,10 @@ public class TouchController {
     }
 
     private boolean injectEventSync(InputEvent event) {
-        return getUiAutomation().injectInputEvent(event, true);
+        long start = PhaseRecorder.start();
+        boolean result = getUiAutomation().injectInputEvent(event, true);
+        PhaseRecorder.record(PhaseRecorder.INPUT_TOUCH, start);
+        return result;
     }
 
     public boolean touchDown(float x, float y) {
@@ -0,0 +1,80 @@
+package com.github.uiautomator.stub;
+
+/**
+ * The children lookups of the walks of one kind, see {@link NodeTraversal}.
+ */
+public class TraversalStats {
+    private String _operation;
+    private boolean _prefetch;
+    private long _walks;
+    private long _lookups;
+    private long _fetches;
+    // microseconds spent in the binder fetches
+    private long _fetchTime;
+    private long _maxFetches;
+    private long _lastFetches;
+
+    public String getOperation() {
+        return _operation;
+    }
+
+    public void setOperation(String operation) {
+        this._operation = operation;
+    }
+
+    public boolean isPrefetch() {
+        return _prefetch;
+    }
+
+    public void setPrefetch(boolean prefetch) {
+        this._prefetch = prefetch;
+    }
+
+    public long getWalks() {
+        return _walks;
+    }
+
+    public void setWalks(long walks) {
+        this._walks = walks;
+    }
+
+    public long getLookups() {
+        return _lookups;
+    }
+
+    public void setLookups(long lookups) {
+        this._lookups = lookups;
+    }
+
+    public long getFetches() {
+        return _fetches;
+    }
+
+    public void setFetches(long fetches) {
+        this._fetches = fetches;
+    }
+
+    public long getFetchTime() {
+        return _fetchTime;
+    }
+
+    public void setFetchTime(long fetchTime) {
+        this._fetchTime = fetchTime;
+    }
+
+    public long getMaxFetches() {
+        return _maxFetches;
+    }
+
+    public void setMaxFetches(long maxFetches) {
+        this._maxFetches = maxFetches;
+    }
+
+    public long getLastFetches() {
+        return _lastFetches;
+    }
+
+    public void setLastFetches(long lastFetches) {
+        this._lastFetches = lastFetches;
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.uiautomator.stub;
+
+import android.os.SystemClock;
+
+import androidx.test.uiautomator.UiObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The UiObjects handed to the clients by name. A name expires TTL ms after its last use, and
+ * the least recently used names are dropped beyond CAPACITY. A single thread removes the
+ * expired names every SWEEP_INTERVAL.
+ */
+class UiObjectRegistry {
+    private static final long TTL = 60000;
+    private static final int CAPACITY = 1024;
+    private static final long SWEEP_INTERVAL = 5000;
+
+    // in access order, the eldest entry is the first to expire
+    private final LinkedHashMap<String, Entry> objects = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > CAPACITY) {
+                evicted++;
+                return true;
+            }
+            return false;
+        }
+    };
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "UiObjectRegistry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private long created = 0;
+    private long expired = 0;
+    private long evicted = 0;
+
+    UiObjectRegistry() {
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the name of the object
+     */
+    synchronized String put(UiObject obj) {
+        String key = UUID.randomUUID().toString();
+        objects.put(key, new Entry(obj));
+        created++;
+        return key;
+    }
+
+    /**
+     * @return the object, or null if the name is unknown or expired. A hit extends the TTL.
+     */
+    synchronized UiObject get(String key) {
+        Entry entry = objects.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (entry.expiresAt <= now) {
+            objects.remove(key);
+            expired++;
+            return null;
+        }
+        entry.expiresAt = now + TTL;
+        return entry.obj;
+    }
+
+    synchronized void remove(String key) {
+        objects.remove(key);
+    }
+
+    synchronized String[] keys() {
+        return objects.keySet().toArray(new String[0]);
+    }
+
+    synchronized UiObjectStats getStats() {
+        UiObjectStats stats = new UiObjectStats();
+        stats.setLiveCount(objects.size());
+        stats.setCapacity(CAPACITY);
+        stats.setTtl(TTL);
+        stats.setCreated(created);
+        stats.setExpired(expired);
+        stats.setEvicted(evicted);
+        return stats;
+    }
+
+    private synchronized void sweep() {
+        long now = SystemClock.uptimeMillis();
+        Iterator<Entry> it = objects.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().expiresAt > now) {
+                break;
+            }
+            it.remove();
+            expired++;
+        }
+    }
+
+    private static class Entry {
+        final UiObject obj;
+        long expiresAt;
+
+        Entry(UiObject obj) {
+            this.obj = obj;
+            this.expiresAt = SystemClock.uptimeMillis() + TTL;
+        }
+    }
+}
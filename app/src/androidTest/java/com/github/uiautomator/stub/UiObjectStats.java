@@ -0,0 +1,61 @@
+package com.github.uiautomator.stub;
+
+/**
+ * State of the named UiObject handles.
+ */
+public class UiObjectStats {
+    private int _liveCount;
+    private int _capacity;
+    private long _ttl;
+    private long _created;
+    private long _expired;
+    private long _evicted;
+
+    public int getLiveCount() {
+        return _liveCount;
+    }
+
+    public void setLiveCount(int liveCount) {
+        this._liveCount = liveCount;
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this._capacity = capacity;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this._ttl = ttl;
+    }
+
+    public long getCreated() {
+        return _created;
+    }
+
+    public void setCreated(long created) {
+        this._created = created;
+    }
+
+    public long getExpired() {
+        return _expired;
+    }
+
+    public void setExpired(long expired) {
+        this._expired = expired;
+    }
+
+    public long getEvicted() {
+        return _evicted;
+    }
+
+    public void setEvicted(long evicted) {
+        this._evicted = evicted;
+    }
+}
@@ -0,0 +1,244 @@
+package com.github.uiautomator.stub;
+
+import android.app.UiAutomation;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityEvent;
+
+import androidx.test.uiautomator.UiDevice;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.uiautomator.stub.watcher.SelectorWatcher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the registered watchers when a window changes, instead of only when a UiObject lookup
+ * fails like UiDevice does.
+ * <p>
+ * The window events are coalesced for SETTLE_DELAY, then one {@link HierarchySnapshot} is taken and
+ * all the watchers are checked against it. A condition used by several watchers is only matched
+ * once per snapshot. After a watcher fired, the watchers run again on the next window change.
+ * <p>
+ * The watchers are not registered with UiDevice as well, which would run them on the thread of
+ * a failed lookup: all the actions run on the engine thread, one at a time, so a popup is never
+ * handled twice.
+ */
+class WatcherEngine implements UiAutomation.OnAccessibilityEventListener {
+    private static final long SETTLE_DELAY = 100;
+    private static final int WINDOW_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+
+    private final UiDevice device;
+    private final AccessibilityEventListener events;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<String, Entry> watchers = new LinkedHashMap<>();
+    private ScheduledExecutorService executor;
+    private boolean pending = false;
+
+    private long evaluations = 0;
+    private long totalEvaluationTime = 0;
+    private long maxEvaluationTime = 0;
+    private long conditionChecks = 0;
+    private long sharedConditionChecks = 0;
+
+    WatcherEngine(UiDevice device, AccessibilityEventListener events) {
+        this.device = device;
+        this.events = events;
+    }
+
+    synchronized void register(String name, Selector[] conditions, SelectorWatcher watcher) {
+        String[] keys = new String[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            try {
+                // the same selector has the same JSON, so it is only matched once
+                keys[i] = mapper.writeValueAsString(conditions[i]);
+            } catch (JsonProcessingException e) {
+                keys[i] = name + "#" + i;
+            }
+        }
+        watchers.put(name, new Entry(conditions, keys, watcher));
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor();
+            events.addSubscriber(this);
+        }
+        schedule();
+    }
+
+    synchronized void remove(String name) {
+        watchers.remove(name);
+        if (watchers.isEmpty() && executor != null) {
+            events.removeSubscriber(this);
+            executor.shutdownNow();
+            executor = null;
+            pending = false;
+        }
+    }
+
+    /**
+     * Check the watchers now, on the engine thread so that it does not overlap an evaluation.
+     */
+    void runNow() {
+        ScheduledExecutorService current;
+        synchronized (this) {
+            current = executor;
+        }
+        if (current == null) {
+            return;
+        }
+        try {
+            current.submit(new Runnable() {
+                @Override
+                public void run() {
+                    evaluate();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e("watchers failed: " + e.getCause());
+        } catch (RejectedExecutionException e) {
+            // the last watcher was removed meanwhile
+        }
+    }
+
+    synchronized boolean hasTriggered(String name) {
+        Entry entry = watchers.get(name);
+        return entry != null && entry.triggered;
+    }
+
+    synchronized boolean hasAnyTriggered() {
+        for (Entry entry : watchers.values()) {
+            if (entry.triggered) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void resetTriggers() {
+        for (Entry entry : watchers.values()) {
+            entry.triggered = false;
+        }
+    }
+
+    synchronized WatcherEngineStats getStats() {
+        WatcherEngineStats stats = new WatcherEngineStats();
+        stats.setEvaluations(evaluations);
+        stats.setTotalEvaluationTime(totalEvaluationTime);
+        stats.setMaxEvaluationTime(maxEvaluationTime);
+        stats.setConditionChecks(conditionChecks);
+        stats.setSharedConditionChecks(sharedConditionChecks);
+        List<WatcherStats> list = new ArrayList<>();
+        for (Map.Entry<String, Entry> item : watchers.entrySet()) {
+            Entry entry = item.getValue();
+            list.add(new WatcherStats(item.getKey(), entry.conditions.length, entry.triggerCount, entry.lastTriggeredAt));
+        }
+        stats.setWatchers(list.toArray(new WatcherStats[0]));
+        return stats;
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if ((event.getEventType() & WINDOW_EVENT_TYPES) != 0) {
+            synchronized (this) {
+                schedule();
+            }
+        }
+    }
+
+    private void schedule() {
+        if (pending || executor == null) {
+            return;
+        }
+        pending = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evaluate();
+            }
+        }, SETTLE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void evaluate() {
+        List<Map.Entry<String, Entry>> entries;
+        synchronized (this) {
+            pending = false;
+            entries = new ArrayList<>(watchers.entrySet());
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        long start = SystemClock.uptimeMillis();
+        SelectorMatcher matcher = new SelectorMatcher(HierarchySnapshot.capture(device));
+        Map<String, Boolean> results = new HashMap<>();
+        List<Map.Entry<String, Entry>> fired = new ArrayList<>();
+        long checks = 0;
+        long shared = 0;
+        for (Map.Entry<String, Entry> item : entries) {
+            Entry entry = item.getValue();
+            boolean matched = true;
+            for (int i = 0; i < entry.conditions.length && matched; i++) {
+                Boolean result = results.get(entry.keys[i]);
+                if (result == null) {
+                    // like UiObject.exists() of SelectorWatcher: the active window only
+                    result = matcher.find(entry.conditions[i], false) != null;
+                    results.put(entry.keys[i], result);
+                    checks++;
+                } else {
+                    shared++;
+                }
+                matched = result;
+            }
+            if (matched) {
+                fired.add(item);
+            }
+        }
+        long elapsed = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            evaluations++;
+            totalEvaluationTime += elapsed;
+            maxEvaluationTime = Math.max(maxEvaluationTime, elapsed);
+            conditionChecks += checks;
+            sharedConditionChecks += shared;
+        }
+        for (Map.Entry<String, Entry> item : fired) {
+            Entry entry = item.getValue();
+            Log.d("watcher " + item.getKey() + " triggered by a window change");
+            try {
+                entry.watcher.trigger();
+            } catch (RuntimeException e) {
+                Log.e("watcher " + item.getKey() + " failed", e);
+            }
+            synchronized (this) {
+                entry.triggered = true;
+                entry.triggerCount++;
+                entry.lastTriggeredAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static class Entry {
+        final Selector[] conditions;
+        final String[] keys;
+        final SelectorWatcher watcher;
+        boolean triggered = false;
+        long triggerCount = 0;
+        long lastTriggeredAt = 0;
+
+        Entry(Selector[] conditions, String[] keys, SelectorWatcher watcher) {
+            this.conditions = conditions;
+            this.keys = keys;
+            this.watcher = watcher;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.uiautomator.stub;
+
+/**
+ * Metrics of the {@link WatcherEngine}: how many evaluations ran, their time, and how many
+ * condition checks were saved by sharing the selectors between watchers.
+ */
+public class WatcherEngineStats {
+    private long _evaluations;
+    private long _totalEvaluationTime;
+    private long _maxEvaluationTime;
+    private long _conditionChecks;
+    private long _sharedConditionChecks;
+    private WatcherStats[] _watchers;
+
+    public long getEvaluations() {
+        return _evaluations;
+    }
+
+    public void setEvaluations(long evaluations) {
+        this._evaluations = evaluations;
+    }
+
+    public long getTotalEvaluationTime() {
+        return _totalEvaluationTime;
+    }
+
+    public void setTotalEvaluationTime(long totalEvaluationTime) {
+        this._totalEvaluationTime = totalEvaluationTime;
+    }
+
+    public long getMaxEvaluationTime() {
+        return _maxEvaluationTime;
+    }
+
+    public void setMaxEvaluationTime(long maxEvaluationTime) {
+        this._maxEvaluationTime = maxEvaluationTime;
+    }
+
+    public long getConditionChecks() {
+        return _conditionChecks;
+    }
+
+    public void setConditionChecks(long conditionChecks) {
+        this._conditionChecks = conditionChecks;
+    }
+
+    public long getSharedConditionChecks() {
+        return _sharedConditionChecks;
+    }
+
+    public void setSharedConditionChecks(long sharedConditionChecks) {
+        this._sharedConditionChecks = sharedConditionChecks;
+    }
+
+    public WatcherStats[] getWatchers() {
+        return _watchers;
+    }
+
+    public void setWatchers(WatcherStats[] watchers) {
+        this._watchers = watchers;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.uiautomator.stub;
+
+/**
+ * How often a watcher was triggered by the {@link WatcherEngine}.
+ */
+public class WatcherStats {
+    private String _name;
+    private int _conditionCount;
+    private long _triggerCount;
+    private long _lastTriggeredAt;
+
+    public WatcherStats() {
+    }
+
+    public WatcherStats(String name, int conditionCount, long triggerCount, long lastTriggeredAt) {
+        this._name = name;
+        this._conditionCount = conditionCount;
+        this._triggerCount = triggerCount;
+        this._lastTriggeredAt = lastTriggeredAt;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public void setName(String name) {
+        this._name = name;
+    }
+
+    public int getConditionCount() {
+        return _conditionCount;
+    }
+
+    public void setConditionCount(int conditionCount) {
+        this._conditionCount = conditionCount;
+    }
+
+    public long getTriggerCount() {
+        return _triggerCount;
+    }
+
+    public void setTriggerCount(long triggerCount) {
+        this._triggerCount = triggerCount;
+    }
+
+    public long getLastTriggeredAt() {
+        return _lastTriggeredAt;
+    }
+
+    public void setLastTriggeredAt(long lastTriggeredAt) {
+        this._lastTriggeredAt = lastTriggeredAt;
+    }
+}
@@ -27,6 +27,10 @@ import androidx.test.uiautomator.UiObject;
 import androidx.test.uiautomator.UiSelector;
 import androidx.test.uiautomator.UiWatcher;
 
+import com.github.uiautomator.stub.Notifications;
+
+import java.util.Collections;
+
 /**
  * Created with IntelliJ IDEA.
  * User: xiaocong@gmail.com
@@ -36,6 +40,7 @@ import androidx.test.uiautomator.UiWatcher;
  */
 public abstract class SelectorWatcher implements UiWatcher {
     private UiSelector[] conditions = null;
+    private String name = null;
 
     public SelectorWatcher(UiSelector[] conditions) {
         this.conditions = conditions;
@@ -47,9 +52,26 @@ public abstract class SelectorWatcher implements UiWatcher {
             UiObject obj = new UiObject(s);
             if (!obj.exists()) return false;
         }
-        action();
+        trigger();
         return true;
     }
 
+    /**
+     * Run the action, the conditions being already checked (e.g. by the watcher engine).
+     */
+    public void trigger() {
+        action();
+        if (name != null) {
+            Notifications.publish(Notifications.WATCHER_TRIGGERED, Collections.<String, Object>singletonMap("name", name));
+        }
+    }
+
+    /**
+     * @param name the name the watcher is registered with, sent in the trigger notification
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
     public abstract void action();
 }
@@ -9,13 +9,20 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Looper;
 import android.util.Log;
 import android.view.Surface;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import com.github.uiautomator.util.AdaptiveBitrate;
+import com.github.uiautomator.util.EncoderSettings;
+import com.github.uiautomator.util.H264Broadcaster;
+import com.github.uiautomator.util.MjpegStream;
+import com.github.uiautomator.util.PooledByteArrayOutputStream;
+import com.github.uiautomator.util.ScreenshotEncoder;
+import com.github.uiautomator.util.TileFingerprint;
+
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.Map;
@@ -43,6 +50,12 @@ public class ScreenHttpServer extends NanoHTTPD {
 
     protected static final int TIMEOUT_USEC = 10000;    // 10[msec]
 
+    private final H264Broadcaster broadcaster = new H264Broadcaster();
+    private final TileFingerprint.History screenshotHistory = new TileFingerprint.History();
+    private Thread streamThread;
+    private volatile MediaCodec streamCodec;
+    private EncoderSettings streamSettings;
+
     public ScreenHttpServer(int port) {
         super(port);
     }
@@ -71,11 +84,18 @@ public class ScreenHttpServer extends NanoHTTPD {
                 stop();
                 return newFixedLengthResponse("Server stopped");
             } else if ("/screenshot".equals(uri)) {
-                return handleGetScreenshot();
+                return handleGetScreenshot(headers, params);
+            } else if ("/screenshot/mjpeg".equals(uri)) {
+                return handleGetMjpeg(params);
             } else if ("/screenrecord".equals(uri) && Method.POST == method) {
                 return handlePostScreenrecord(params);
             } else if ("/screenrecord".equals(uri) && Method.PUT == method) {
                 return handlePutScreenrecord();
+            } else if ("/screenrecord/h264".equals(uri) && Method.GET == method) {
+                return handleGetH264Stream(params);
+            } else if ("/screenrecord/h264/sync".equals(uri) && Method.POST == method) {
+                requestSyncFrame();
+                return newFixedLengthResponse("OK");
             }
         } catch (Exception ex) {
             ex.printStackTrace();
@@ -85,21 +105,77 @@ public class ScreenHttpServer extends NanoHTTPD {
         return newFixedLengthResponse("404 Not found");
     }
 
-    private Response handleGetScreenshot() {
+    /**
+     * JPEG screenshot with an ETag; the client gets a 304 when it sends back the ETag of the current
+     * screen, or only the changed part of the screen with changed=true.
+     */
+    private Response handleGetScreenshot(Map<String, String> headers, Map<String, String> params) {
         // Requires SDK >= 21
         java.lang.reflect.Method injector = null;
         try {
             Bitmap bmp = this.takeScreenshot();
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            bmp.compress(Bitmap.CompressFormat.JPEG, 75, bout);
+            String etag = null;
+            Rect changedRegion = null;
+            TileFingerprint fingerprint = TileFingerprint.compute(bmp);
+            if (fingerprint != null) {
+                String ifNoneMatch = headers.get("if-none-match");
+                etag = fingerprint.getETag("jpeg,75");
+                if (etag.equals(ifNoneMatch)) {
+                    bmp.recycle();
+                    Response response = newFixedLengthResponse(Response.Status.NOT_MODIFIED, MIME_PLAINTEXT, "");
+                    response.addHeader("ETag", etag);
+                    return response;
+                }
+                TileFingerprint previous = screenshotHistory.get(ifNoneMatch);
+                if ("true".equals(params.get("changed")) && previous != null) {
+                    changedRegion = fingerprint.changedRegion(previous);
+                }
+                screenshotHistory.put(etag, fingerprint);
+            }
+            Bitmap image = ScreenshotEncoder.transform(bmp, changedRegion, 1.0f);
+            PooledByteArrayOutputStream bout = PooledByteArrayOutputStream.obtain();
+            image.compress(Bitmap.CompressFormat.JPEG, 75, bout);
+            ScreenshotEncoder.release(image, bmp);
             bmp.recycle();
-            return newChunkedResponse(Response.Status.OK, "image/jpeg", new ByteArrayInputStream(bout.toByteArray()));
+            Response response = newFixedLengthResponse(Response.Status.OK, "image/jpeg", bout.toInputStream(), bout.size());
+            if (etag != null) {
+                response.addHeader("ETag", etag);
+            }
+            if (changedRegion != null) {
+                response.addHeader("X-Changed-Region", changedRegion.left + "," + changedRegion.top + "," + changedRegion.right + "," + changedRegion.bottom);
+            }
+            return response;
         } catch (Exception e) {
             e.printStackTrace();
             return newFixedLengthResponse("Screenshot exception: " + e.toString());
         }
     }
 
+    /**
+     * Live screen as a multipart/x-mixed-replace stream of JPEG frames.
+     *
+     * @param params fps (default 10), quality (default 60), scale (default 1.0)
+     */
+    private Response handleGetMjpeg(Map<String, String> params) {
+        int fps = MjpegStream.DEFAULT_FPS;
+        int quality = MjpegStream.DEFAULT_QUALITY;
+        float scale = 1.0f;
+        try {
+            if (params.containsKey("fps")) fps = Integer.parseInt(params.get("fps"));
+            if (params.containsKey("quality")) quality = Integer.parseInt(params.get("quality"));
+            if (params.containsKey("scale")) scale = Float.parseFloat(params.get("scale"));
+        } catch (NumberFormatException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid parameter: " + e.getMessage());
+        }
+        MjpegStream stream = new MjpegStream(new MjpegStream.FrameSource() {
+            @Override
+            public Bitmap capture() throws Exception {
+                return takeScreenshot();
+            }
+        }, fps, quality, scale);
+        return newChunkedResponse(Response.Status.OK, MjpegStream.MIME_TYPE, stream);
+    }
+
     private Bitmap takeScreenshot() throws Exception {
         try {
             java.lang.reflect.Method rScreenshot = surfaceControl.getDeclaredMethod("screenshot", Integer.TYPE, Integer.TYPE);
@@ -128,9 +204,17 @@ public class ScreenHttpServer extends NanoHTTPD {
         if (videoPath == null || "".equals(videoPath)) {
             videoPath = "/sdcard/video.mp4";
         }
+        EncoderSettings settings;
+        try {
+            settings = EncoderSettings.fromParams(params);
+        } catch (IllegalArgumentException e) {
+            this.recording = false;
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid parameter: " + e.getMessage());
+        }
         new File(videoPath).delete(); // delete file before create
 
-        final MediaCodec avc = createAVC();
+        final Rect videoRect = settings.getVideoRect(getCurrentDisplayRect());
+        final MediaCodec avc = createAVC(settings, videoRect);
         final MediaMuxer muxer = new MediaMuxer(videoPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 
         final String finalVideoPath = videoPath;
@@ -139,7 +223,7 @@ public class ScreenHttpServer extends NanoHTTPD {
             public void run() {
                 IBinder virtualDisplay = null;
                 try {
-                    virtualDisplay = createVirtualDisplay(avc);
+                    virtualDisplay = createVirtualDisplay(avc, videoRect);
                     System.out.println("> Recording started");
                     startRecording(avc, muxer);
                 } catch (Exception e) {
@@ -160,6 +244,184 @@ public class ScreenHttpServer extends NanoHTTPD {
         return newFixedLengthResponse("OK");
     }
 
+    /**
+     * Live screen as a raw H.264 Annex-B stream. All the clients share one encoder, which
+     * runs while at least one client is connected; the encoder settings of the client that
+     * started it apply to everybody.
+     *
+     * @param params see {@link EncoderSettings#fromParams(Map)}
+     */
+    private Response handleGetH264Stream(Map<String, String> params) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return newFixedLengthResponse("Screenrecord require SDK >= 21");
+        }
+        EncoderSettings settings;
+        try {
+            settings = EncoderSettings.fromParams(params);
+        } catch (IllegalArgumentException e) {
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid parameter: " + e.getMessage());
+        }
+        H264Broadcaster.Subscriber subscriber = broadcaster.subscribe();
+        synchronized (this) {
+            if (streamThread == null) {
+                streamSettings = settings;
+            }
+        }
+        startStreaming();
+        return newChunkedResponse(Response.Status.OK, "video/h264", subscriber);
+    }
+
+    private synchronized void startStreaming() {
+        if (streamThread != null) {
+            return;
+        }
+        broadcaster.setKeyFrameRequester(new H264Broadcaster.KeyFrameRequester() {
+            @Override
+            public void requestKeyFrame() {
+                requestSyncFrame();
+            }
+        });
+        streamThread = new Thread("ScreenStream") {
+            @Override
+            public void run() {
+                EncoderSettings settings;
+                synchronized (ScreenHttpServer.this) {
+                    settings = streamSettings;
+                }
+                boolean failed = true;
+                try {
+                    while (settings != null) {
+                        settings = streamOnce(settings);
+                    }
+                    failed = false;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    System.out.println("> Streaming finished");
+                    synchronized (ScreenHttpServer.this) {
+                        streamThread = null;
+                        if (failed) {
+                            // the encoder is broken, end the streams instead of restarting it
+                            broadcaster.closeAll();
+                        } else if (broadcaster.getSubscriberCount() > 0) {
+                            // the loop stops without subscribers, these joined while the encoder was stopping
+                            startStreaming();
+                        }
+                    }
+                }
+            }
+        };
+        streamThread.start();
+    }
+
+    @TargetApi(21)
+    private void requestSyncFrame() {
+        MediaCodec avc = streamCodec;
+        if (avc == null) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            avc.setParameters(params);
+        } catch (IllegalStateException e) {
+            // encoder stopping
+        }
+    }
+
+    /**
+     * Run one encoder until the last client leaves.
+     *
+     * @return smaller settings to restart the encoder with, or null when done
+     */
+    private EncoderSettings streamOnce(EncoderSettings settings) throws Exception {
+        MediaCodec avc = null;
+        IBinder virtualDisplay = null;
+        try {
+            Rect display = getCurrentDisplayRect();
+            Rect videoRect = settings.getVideoRect(display);
+            avc = createAVC(settings, videoRect);
+            virtualDisplay = createVirtualDisplay(avc, videoRect);
+            streamCodec = avc;
+            System.out.println("> Streaming started, " + videoRect.width() + "x" + videoRect.height() + " " + settings);
+            int bitRate = streamEncoderOutput(avc, settings);
+            if (bitRate > 0) {
+                return settings.downscaled(display, bitRate);
+            }
+            return null;
+        } finally {
+            streamCodec = null;
+            releaseStreaming(avc, virtualDisplay);
+        }
+    }
+
+    @TargetApi(21)
+    private void setBitRate(MediaCodec avc, int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        avc.setParameters(params);
+    }
+
+    /**
+     * Copy the encoder output to the clients. In adaptive mode the bit rate follows what the
+     * clients can take.
+     *
+     * @return the bit rate the encoder was at when the clients could not keep up even at the
+     *         minimum one, 0 when the clients left
+     */
+    @TargetApi(21)
+    private int streamEncoderOutput(MediaCodec avc, EncoderSettings settings) {
+        AdaptiveBitrate adaptive = null;
+        if (settings.isAdaptive()) {
+            adaptive = new AdaptiveBitrate(settings.getBitRate(), settings.getStartBitRate(), broadcaster.getDroppedPackets(), System.currentTimeMillis());
+        }
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        while (broadcaster.getSubscriberCount() > 0) {
+            if (adaptive != null) {
+                int bitRate = adaptive.update(broadcaster.getDroppedPackets(), System.currentTimeMillis());
+                if (bitRate > 0) {
+                    Log.d(TAG, "adaptive bitrate: " + bitRate);
+                    setBitRate(avc, bitRate);
+                }
+                if (adaptive.isExhausted()) {
+                    return adaptive.getBitRate();
+                }
+            }
+            int index = avc.dequeueOutputBuffer(bufferInfo, TIMEOUT_USEC);
+            if (index < 0) {
+                continue;
+            }
+            ByteBuffer data = avc.getOutputBuffer(index);
+            if (data != null && bufferInfo.size > 0) {
+                byte[] packet = new byte[bufferInfo.size];
+                data.position(bufferInfo.offset);
+                data.get(packet, 0, bufferInfo.size);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // SPS and PPS, sent first to every subscriber
+                    broadcaster.setCodecConfig(packet);
+                } else {
+                    broadcaster.publish(packet, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                }
+            }
+            avc.releaseOutputBuffer(index, false);
+        }
+        return 0;
+    }
+
+    private void releaseStreaming(MediaCodec avc, IBinder bDisplay) {
+        try {
+            if (avc != null) {
+                avc.stop();
+                avc.release();
+            }
+            if (bDisplay != null) {
+                rDestroyDisplay.invoke(null, bDisplay);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
     @TargetApi(21)
     private void startRecording(MediaCodec avc, MediaMuxer muxer) {
         MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
@@ -205,7 +467,10 @@ public class ScreenHttpServer extends NanoHTTPD {
         }
     }
 
-    private IBinder createVirtualDisplay(MediaCodec mediaCodec) throws Exception {
+    /**
+     * @param videoRect size of the encoder input, the display is scaled into it
+     */
+    private IBinder createVirtualDisplay(MediaCodec mediaCodec, Rect videoRect) throws Exception {
         try {
             rCreateDisplay = surfaceControl.getDeclaredMethod("createDisplay", String.class, Boolean.TYPE);
             rOpenTransaction = surfaceControl.getDeclaredMethod("openTransaction");
@@ -222,7 +487,7 @@ public class ScreenHttpServer extends NanoHTTPD {
 
             rOpenTransaction.invoke(null);
             setDisplaySurface.invoke(null, mDisplay, surface);
-            setDisplayProjection.invoke(null, mDisplay, 0, getCurrentDisplayRect(), getCurrentDisplayRect()); // make video smaller
+            setDisplayProjection.invoke(null, mDisplay, 0, getCurrentDisplayRect(), videoRect); // make video smaller
             setDisplayLayerStack.invoke(null, mDisplay, 0);
             rCloseTransaction.invoke(null);
 
@@ -249,15 +514,18 @@ public class ScreenHttpServer extends NanoHTTPD {
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-    private MediaCodec createAVC() throws Exception {
-        Rect display = getCurrentDisplayRect();
-        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, display.width(), display.height());
+    private MediaCodec createAVC(EncoderSettings settings, Rect videoRect) throws Exception {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, videoRect.width(), videoRect.height());
         // Set color format
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, 1500000); // bit rate 1500000
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, 20); // FPS
-        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 10); // Frame interval, unit seconds
+        format.setInteger(MediaFormat.KEY_BIT_RATE, settings.getStartBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, settings.getFrameRate()); // FPS
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, settings.getIFrameInterval()); // Frame interval, unit seconds
+        if (Build.VERSION.SDK_INT >= 29) {
+            // the surface input produces a frame for every screen update, cap it
+            format.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, settings.getFrameRate());
+        }
         MediaCodec mMediaCodec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC); // Output encoding
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE); // 配置好格式参数
         return mMediaCodec;
@@ -0,0 +1,70 @@
+package com.github.uiautomator.util;
+
+/**
+ * Lowers the encoder bit rate while the clients can not keep up and raises it back slowly once
+ * they do. The clients' backlog is seen through the packets dropped by {@link H264Broadcaster}.
+ */
+public class AdaptiveBitrate {
+    private static final long CHECK_INTERVAL = 2000;
+    private static final long RECOVER_AFTER = 10000;
+
+    private final int maxBitRate;
+    private int bitRate;
+    private long lastDropped;
+    private long lastCheck;
+    private long lastCongestion;
+    private boolean exhausted = false;
+
+    /**
+     * @param bitRate the bit rate the encoder starts with, at most maxBitRate
+     */
+    public AdaptiveBitrate(int maxBitRate, int bitRate, long dropped, long now) {
+        this.maxBitRate = maxBitRate;
+        this.bitRate = Math.min(maxBitRate, bitRate);
+        this.lastDropped = dropped;
+        this.lastCheck = now;
+        this.lastCongestion = now;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * True when the clients still drop packets at the minimum bit rate, so only a smaller video
+     * would help.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * @param dropped total packets dropped so far
+     * @return the new bit rate, or 0 when it stays the same
+     */
+    public int update(long dropped, long now) {
+        if (now - lastCheck < CHECK_INTERVAL) {
+            return 0;
+        }
+        boolean congested = dropped > lastDropped;
+        lastDropped = dropped;
+        lastCheck = now;
+
+        int target = bitRate;
+        if (congested) {
+            lastCongestion = now;
+            if (bitRate == EncoderSettings.MIN_BIT_RATE) {
+                exhausted = true;
+            }
+            target = Math.max(EncoderSettings.MIN_BIT_RATE, bitRate * 7 / 10);
+        } else if (now - lastCongestion >= RECOVER_AFTER) {
+            exhausted = false;
+            target = Math.min(maxBitRate, bitRate * 6 / 5);
+        }
+        if (target == bitRate) {
+            return 0;
+        }
+        bitRate = target;
+        return bitRate;
+    }
+}
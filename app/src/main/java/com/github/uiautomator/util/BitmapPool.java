@@ -0,0 +1,74 @@
+package com.github.uiautomator.util;
+
+import android.graphics.Bitmap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A few ARGB_8888 bitmaps kept for the next screenshot, so cropping and scaling frames of the same
+ * size do not allocate a new bitmap each time.
+ */
+public class BitmapPool {
+    private static final int MAX_POOLED = 2;
+
+    private static final ConcurrentLinkedQueue<Bitmap> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final AtomicLong allocations = new AtomicLong();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * @return a mutable bitmap of this size, its content is undefined
+     */
+    public static Bitmap obtain(int width, int height) {
+        Bitmap bitmap = pool.poll();
+        if (bitmap != null) {
+            pooled.decrementAndGet();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                reuses.incrementAndGet();
+                return bitmap;
+            }
+            if (bitmap.getAllocationByteCount() >= width * height * 4) {
+                bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                reuses.incrementAndGet();
+                return bitmap;
+            }
+            bitmap.recycle();
+        }
+        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(bitmap.getAllocationByteCount());
+        return bitmap;
+    }
+
+    /**
+     * Give the bitmap back, it must not be used afterwards.
+     */
+    public static void release(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            bitmap.recycle();
+            return;
+        }
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            bitmap.recycle();
+            return;
+        }
+        pool.offer(bitmap);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bitmapAllocations", allocations.get());
+        stats.put("bitmapAllocatedBytes", allocatedBytes.get());
+        stats.put("bitmapReuses", reuses.get());
+        return stats;
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.uiautomator.util;
+
+import android.graphics.Rect;
+
+import java.util.Map;
+
+/**
+ * H.264 encoder parameters of one screen record or stream session.
+ */
+public class EncoderSettings {
+    public static final int DEFAULT_BIT_RATE = 1500000;
+    public static final int DEFAULT_FRAME_RATE = 20;
+    public static final int DEFAULT_I_FRAME_INTERVAL = 10;
+    public static final int MIN_BIT_RATE = 200000;
+    public static final int MIN_SIZE = 320;
+
+    private int bitRate = DEFAULT_BIT_RATE;
+    // the adaptive mode starts here and goes up to bitRate, 0 means bitRate
+    private int startBitRate = 0;
+    private int maxSize = 0; // 0 means the native resolution
+    private int frameRate = DEFAULT_FRAME_RATE;
+    private int iFrameInterval = DEFAULT_I_FRAME_INTERVAL;
+    private boolean adaptive = false;
+
+    /**
+     * @param params bitrate (bits/s), max_size (longest side in pixels), fps, i_frame_interval (seconds), adaptive
+     * @throws IllegalArgumentException when a parameter is not a valid number or out of range
+     */
+    public static EncoderSettings fromParams(Map<String, String> params) {
+        EncoderSettings settings = new EncoderSettings();
+        if (params.containsKey("bitrate")) settings.bitRate = Integer.parseInt(params.get("bitrate"));
+        if (params.containsKey("max_size")) settings.maxSize = Integer.parseInt(params.get("max_size"));
+        if (params.containsKey("fps")) settings.frameRate = Integer.parseInt(params.get("fps"));
+        if (params.containsKey("i_frame_interval")) settings.iFrameInterval = Integer.parseInt(params.get("i_frame_interval"));
+        String adaptive = params.get("adaptive");
+        settings.adaptive = "true".equals(adaptive) || "1".equals(adaptive);
+
+        if (settings.bitRate < MIN_BIT_RATE) {
+            throw new IllegalArgumentException("bitrate must be at least " + MIN_BIT_RATE);
+        }
+        if (settings.maxSize != 0 && settings.maxSize < MIN_SIZE) {
+            throw new IllegalArgumentException("max_size must be 0 or at least " + MIN_SIZE);
+        }
+        if (settings.frameRate < 1 || settings.frameRate > 60) {
+            throw new IllegalArgumentException("fps must be between 1 and 60");
+        }
+        if (settings.iFrameInterval < 0) {
+            throw new IllegalArgumentException("i_frame_interval must not be negative");
+        }
+        return settings;
+    }
+
+    public int getBitRate() {
+        return bitRate;
+    }
+
+    /**
+     * The bit rate the encoder starts with, lower than {@link #getBitRate()} after a downscale.
+     */
+    public int getStartBitRate() {
+        return startBitRate > 0 ? startBitRate : bitRate;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+    public int getIFrameInterval() {
+        return iFrameInterval;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Size of the encoded video: the display downscaled so that its longest side fits maxSize,
+     * keeping the aspect ratio. Both sides are rounded down to a multiple of 8, which every
+     * encoder accepts.
+     */
+    public Rect getVideoRect(Rect display) {
+        int width = display.width();
+        int height = display.height();
+        int longest = Math.max(width, height);
+        if (maxSize > 0 && longest > maxSize) {
+            width = width * maxSize / longest;
+            height = height * maxSize / longest;
+        }
+        return new Rect(0, 0, width & ~7, height & ~7);
+    }
+
+    /**
+     * The same settings with a smaller video, used when even the lowest bit rate is too much
+     * for the client. The bit rates are scaled to the new size: the maximum from the configured
+     * one, the start from the current one, so the restart does not flood the client again.
+     *
+     * @param currentBitRate the bit rate the encoder was at when it gave up
+     * @return null when the video is already at the minimum size
+     */
+    public EncoderSettings downscaled(Rect display, int currentBitRate) {
+        Rect current = getVideoRect(display);
+        int longest = Math.max(current.width(), current.height());
+        if (longest <= MIN_SIZE) {
+            return null;
+        }
+        EncoderSettings settings = copy();
+        settings.maxSize = Math.max(MIN_SIZE, longest * 3 / 4);
+        // keep the bits per pixel
+        long area = (long) settings.maxSize * settings.maxSize;
+        long longestArea = (long) longest * longest;
+        settings.bitRate = (int) Math.max(MIN_BIT_RATE, bitRate * area / longestArea);
+        settings.startBitRate = (int) Math.max(MIN_BIT_RATE, currentBitRate * area / longestArea);
+        return settings;
+    }
+
+    private EncoderSettings copy() {
+        EncoderSettings settings = new EncoderSettings();
+        settings.bitRate = bitRate;
+        settings.startBitRate = startBitRate;
+        settings.maxSize = maxSize;
+        settings.frameRate = frameRate;
+        settings.iFrameInterval = iFrameInterval;
+        settings.adaptive = adaptive;
+        return settings;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bitrate=%d max_size=%d fps=%d i_frame_interval=%d adaptive=%b",
+                bitRate, maxSize, frameRate, iFrameInterval, adaptive);
+    }
+}
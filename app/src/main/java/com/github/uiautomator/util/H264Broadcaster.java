@@ -0,0 +1,164 @@
+package com.github.uiautomator.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans the output of one H.264 encoder out to several clients as Annex-B streams.
+ * <p>
+ * Every subscriber starts with the codec config (SPS/PPS) followed by a key frame. Each one has
+ * a bounded queue; when a slow reader fills it, its queued packets are dropped and it waits for
+ * the next key frame, so it never gets a stream it can not decode.
+ */
+public class H264Broadcaster {
+    private static final int MAX_QUEUED_PACKETS = 60;
+    private static final long POLL_INTERVAL = 500;
+
+    public interface KeyFrameRequester {
+        void requestKeyFrame();
+    }
+
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // packets lost by a subscriber whose queue overflowed, what the adaptive bit rate reacts to
+    private final AtomicLong droppedPackets = new AtomicLong();
+    // packets not sent while a new or resynced subscriber waits for a key frame
+    private final AtomicLong skippedPackets = new AtomicLong();
+    private volatile byte[] codecConfig;
+    private volatile KeyFrameRequester keyFrameRequester;
+
+    public void setKeyFrameRequester(KeyFrameRequester keyFrameRequester) {
+        this.keyFrameRequester = keyFrameRequester;
+    }
+
+    public Subscriber subscribe() {
+        Subscriber subscriber = new Subscriber();
+        subscribers.add(subscriber);
+        requestKeyFrame();
+        return subscriber;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return the packets dropped because a subscriber could not keep up
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    /**
+     * @return the packets skipped while waiting for a key frame, e.g. after a client joined
+     */
+    public long getSkippedPackets() {
+        return skippedPackets.get();
+    }
+
+    /**
+     * @param config the SPS and PPS NAL units, with their start codes
+     */
+    public void setCodecConfig(byte[] config) {
+        byte[] previous = this.codecConfig;
+        this.codecConfig = config;
+        if (previous != null && !Arrays.equals(previous, config)) {
+            // new encoder, e.g. another size: everybody restarts with the new SPS/PPS
+            for (Subscriber subscriber : subscribers) {
+                subscriber.resync();
+            }
+        }
+    }
+
+    public void publish(byte[] packet, boolean keyFrame) {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(packet, keyFrame);
+        }
+    }
+
+    /**
+     * End the streams of all subscribers, e.g. when the encoder stopped.
+     */
+    public void closeAll() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+        codecConfig = null;
+    }
+
+    private void requestKeyFrame() {
+        KeyFrameRequester requester = keyFrameRequester;
+        if (requester != null) {
+            requester.requestKeyFrame();
+        }
+    }
+
+    public class Subscriber extends InputStream {
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED_PACKETS);
+        private boolean waitingForKeyFrame = true;
+        private volatile boolean closed = false;
+        private byte[] current;
+        private int position;
+
+        private synchronized void offer(byte[] packet, boolean keyFrame) {
+            if (closed) {
+                return;
+            }
+            if (waitingForKeyFrame) {
+                byte[] config = codecConfig;
+                if (!keyFrame || config == null) {
+                    skippedPackets.incrementAndGet();
+                    return;
+                }
+                waitingForKeyFrame = false;
+                queue.offer(config);
+            }
+            if (!queue.offer(packet)) {
+                // too slow, start again from the next key frame
+                droppedPackets.addAndGet(queue.size() + 1);
+                queue.clear();
+                waitingForKeyFrame = true;
+                requestKeyFrame();
+            }
+        }
+
+        private synchronized void resync() {
+            waitingForKeyFrame = true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (current == null || position >= current.length) {
+                if (closed) {
+                    return -1;
+                }
+                try {
+                    current = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                position = 0;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            subscribers.remove(this);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.uiautomator.util;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A multipart/x-mixed-replace stream of JPEG frames, served as the body of a chunked response.
+ * <p>
+ * The stream is pulled: a frame is only captured when the client has read the previous one, so
+ * a slow client gets fewer frames instead of a growing backlog. A frame identical to the previous
+ * one (same {@link TileFingerprint} as the screenshots use) is not encoded nor sent, except every
+ * KEEP_ALIVE_INTERVAL so the client knows we are alive.
+ */
+public class MjpegStream extends InputStream {
+    public static final String BOUNDARY = "mjpegframe";
+    public static final String MIME_TYPE = "multipart/x-mixed-replace; boundary=" + BOUNDARY;
+    public static final int DEFAULT_FPS = 10;
+    public static final int MAX_FPS = 30;
+    public static final int DEFAULT_QUALITY = 60;
+    private static final long KEEP_ALIVE_INTERVAL = 5000;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public interface FrameSource {
+        /**
+         * @return a new bitmap of the screen, recycled by the stream
+         */
+        Bitmap capture() throws Exception;
+    }
+
+    private final FrameSource source;
+    private final long frameInterval;
+    private final int quality;
+    private final float scale;
+    private final PooledByteArrayOutputStream jpeg = PooledByteArrayOutputStream.obtain();
+    private byte[] header = new byte[0];
+    // position in the current part: header, then jpeg, then CRLF
+    private int position = 0;
+    private int partLength = 0;
+    private TileFingerprint fingerprint;
+    private long nextFrameAt = 0;
+    private long lastSentAt = 0;
+    private boolean closed = false;
+
+    public MjpegStream(FrameSource source, int fps, int quality, float scale) {
+        this.source = source;
+        this.frameInterval = 1000 / Math.max(1, Math.min(MAX_FPS, fps));
+        this.quality = quality;
+        this.scale = scale;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        if (position >= partLength) {
+            nextFrame();
+        }
+        int n = 0;
+        while (n < len && position < partLength) {
+            int jpegStart = header.length;
+            int jpegEnd = jpegStart + jpeg.size();
+            int count;
+            if (position < jpegStart) {
+                count = Math.min(len - n, jpegStart - position);
+                System.arraycopy(header, position, b, off + n, count);
+            } else if (position < jpegEnd) {
+                count = Math.min(len - n, jpegEnd - position);
+                System.arraycopy(jpeg.getBuffer(), position - jpegStart, b, off + n, count);
+            } else {
+                count = Math.min(len - n, partLength - position);
+                System.arraycopy(CRLF, position - jpegEnd, b, off + n, count);
+            }
+            position += count;
+            n += count;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            jpeg.recycle();
+        }
+    }
+
+    /**
+     * Wait for the next frame time and encode the next changed frame.
+     */
+    private void nextFrame() throws IOException {
+        while (true) {
+            long wait = nextFrameAt - SystemClock.uptimeMillis();
+            if (wait > 0) {
+                SystemClock.sleep(wait);
+            }
+            nextFrameAt = SystemClock.uptimeMillis() + frameInterval;
+
+            Bitmap bitmap;
+            try {
+                bitmap = source.capture();
+            } catch (Exception e) {
+                throw new IOException("capture screen failed", e);
+            }
+            if (bitmap == null) {
+                throw new IOException("capture screen failed");
+            }
+            try {
+                // null for a hardware bitmap, then the frame is always encoded
+                TileFingerprint current = TileFingerprint.compute(bitmap);
+                boolean unchanged = partLength > 0 && current != null && current.sameAs(fingerprint);
+                if (unchanged && SystemClock.uptimeMillis() - lastSentAt < KEEP_ALIVE_INTERVAL) {
+                    continue;
+                }
+                if (!unchanged) {
+                    encode(bitmap);
+                    fingerprint = current;
+                }
+            } finally {
+                bitmap.recycle();
+            }
+            position = 0;
+            lastSentAt = SystemClock.uptimeMillis();
+            return;
+        }
+    }
+
+    private void encode(Bitmap bitmap) {
+        Bitmap image = ScreenshotEncoder.transform(bitmap, null, scale);
+        jpeg.reset();
+        image.compress(Bitmap.CompressFormat.JPEG, quality, jpeg);
+        ScreenshotEncoder.release(image, bitmap);
+        header = ("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + jpeg.size() + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        partLength = header.length + jpeg.size() + CRLF.length;
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.uiautomator.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ByteArrayOutputStream whose buffer is kept in a small pool and reused by the next
+ * response, so encoding an image does not allocate and grow a new array every time.
+ */
+public class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+    private static final int INITIAL_CAPACITY = 512 * 1024;
+    private static final int MAX_POOLED = 4;
+    // do not keep the buffers grown by an unusually large image
+    private static final int MAX_POOLED_CAPACITY = 16 * 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<PooledByteArrayOutputStream> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final AtomicLong allocations = new AtomicLong();
+    private static final AtomicLong allocatedBytes = new AtomicLong();
+    private static final AtomicLong reuses = new AtomicLong();
+
+    // capacity when obtained, to count the bytes allocated when the buffer grows
+    private int capacity;
+
+    private PooledByteArrayOutputStream() {
+        super(INITIAL_CAPACITY);
+        capacity = INITIAL_CAPACITY;
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(INITIAL_CAPACITY);
+    }
+
+    public static PooledByteArrayOutputStream obtain() {
+        PooledByteArrayOutputStream out = pool.poll();
+        if (out == null) {
+            return new PooledByteArrayOutputStream();
+        }
+        pooled.decrementAndGet();
+        reuses.incrementAndGet();
+        out.reset();
+        return out;
+    }
+
+    /**
+     * Grow the buffer once to the expected size, instead of doubling it while writing.
+     */
+    public void ensureCapacity(int size) {
+        if (buf.length < size) {
+            byte[] grown = new byte[size];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+    }
+
+    /**
+     * Give the buffer back to the pool, it must not be used afterwards.
+     */
+    public void recycle() {
+        if (buf.length > capacity) {
+            allocatedBytes.addAndGet(buf.length - capacity);
+            allocations.incrementAndGet();
+            capacity = buf.length;
+        }
+        if (buf.length > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(this);
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("bufferAllocations", allocations.get());
+        stats.put("bufferAllocatedBytes", allocatedBytes.get());
+        stats.put("bufferReuses", reuses.get());
+        return stats;
+    }
+
+    /**
+     * @return the backing array, valid up to size(), without copying it
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return a stream over the written bytes, without copying them. Closing it recycles this buffer.
+     */
+    public InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count) {
+            private boolean closed = false;
+
+            @Override
+            public synchronized void close() {
+                if (!closed) {
+                    closed = true;
+                    recycle();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.uiautomator.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Crop, scale and compress screenshots in memory, reusing the bitmaps and buffers between calls.
+ */
+public class ScreenshotEncoder {
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_WEBP = "webp";
+
+    private static final Paint SCALE_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    static {
+        // overwrite the pooled bitmap, do not blend with its old content
+        SCALE_PAINT.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * @return the normalized format name, or null if the format is not supported
+     */
+    public static String normalizeFormat(String format) {
+        if (format == null) {
+            return null;
+        }
+        format = format.toLowerCase();
+        if ("jpg".equals(format)) {
+            return FORMAT_JPEG;
+        }
+        if (FORMAT_PNG.equals(format) || FORMAT_JPEG.equals(format) || FORMAT_WEBP.equals(format)) {
+            return format;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("deprecation")
+    public static Bitmap.CompressFormat getCompressFormat(String format) {
+        if (FORMAT_JPEG.equals(format)) {
+            return Bitmap.CompressFormat.JPEG;
+        } else if (FORMAT_WEBP.equals(format)) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.PNG;
+    }
+
+    public static String getMimeType(String format) {
+        if (FORMAT_JPEG.equals(format)) {
+            return "image/jpeg";
+        } else if (FORMAT_WEBP.equals(format)) {
+            return "image/webp";
+        }
+        return "image/png";
+    }
+
+    /**
+     * Parse a region given as "left,top,right,bottom".
+     *
+     * @return the region, or null if the value is not valid
+     */
+    public static Rect parseRegion(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            Rect region = new Rect(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                    Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+            return region.isEmpty() ? null : region;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Crop the bitmap to the region (clipped to the bitmap), then scale it, in a single draw into a
+     * pooled bitmap.
+     *
+     * @param region null for the whole bitmap
+     * @param scale  1.0f for the original size
+     * @return the source bitmap if nothing changes, otherwise a bitmap to give back with {@link #release}
+     */
+    public static Bitmap transform(Bitmap source, Rect region, float scale) {
+        Rect bounds = new Rect(0, 0, source.getWidth(), source.getHeight());
+        Rect clipped = new Rect(bounds);
+        if (region != null && !clipped.intersect(region)) {
+            throw new IllegalArgumentException("Region " + region.toShortString() + " is outside of the screen");
+        }
+        if (scale <= 0) {
+            scale = 1.0f;
+        }
+        int width = Math.max(1, Math.round(clipped.width() * scale));
+        int height = Math.max(1, Math.round(clipped.height() * scale));
+        if (clipped.equals(bounds) && width == source.getWidth() && height == source.getHeight()) {
+            return source;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && source.getConfig() == Bitmap.Config.HARDWARE) {
+            // a software canvas can not draw it
+            Bitmap cropped = Bitmap.createBitmap(source, clipped.left, clipped.top, clipped.width(), clipped.height());
+            Bitmap scaled = Bitmap.createScaledBitmap(cropped, width, height, true);
+            if (cropped != scaled && cropped != source) {
+                cropped.recycle();
+            }
+            return scaled;
+        }
+        Bitmap target = BitmapPool.obtain(width, height);
+        Canvas canvas = new Canvas(target);
+        canvas.drawBitmap(source, clipped, new Rect(0, 0, width, height), SCALE_PAINT);
+        return target;
+    }
+
+    /**
+     * Give back a bitmap returned by {@link #transform}.
+     */
+    public static void release(Bitmap image, Bitmap source) {
+        if (image != source) {
+            BitmapPool.release(image);
+        }
+    }
+}
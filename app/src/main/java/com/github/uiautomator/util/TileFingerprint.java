@@ -0,0 +1,125 @@
+package com.github.uiautomator.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cheap hash of each tile of a screen frame, computed on every few rows and columns. Used to
+ * answer a screenshot request with "not modified", or with only the part of the screen that
+ * changed since the frame the client already has.
+ */
+public class TileFingerprint {
+    public static final int TILE_SIZE = 128;
+    private static final int SAMPLE_STEP = 4;
+
+    private final int width;
+    private final int height;
+    private final int columns;
+    private final int rows;
+    private final long[] tiles;
+    private final long hash;
+
+    private TileFingerprint(int width, int height, long[] tiles, int columns, int rows) {
+        this.width = width;
+        this.height = height;
+        this.tiles = tiles;
+        this.columns = columns;
+        this.rows = rows;
+        long h = 1125899906842597L;
+        for (long tile : tiles) {
+            h = 31 * h + tile;
+        }
+        this.hash = 31 * (31 * h + width) + height;
+    }
+
+    /**
+     * @return null if the pixels can not be read (hardware bitmap)
+     */
+    public static TileFingerprint compute(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            return null;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        long[] tiles = new long[columns * rows];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += SAMPLE_STEP) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            int base = (y / TILE_SIZE) * columns;
+            for (int x = 0; x < width; x += SAMPLE_STEP) {
+                int index = base + x / TILE_SIZE;
+                tiles[index] = 31 * tiles[index] + row[x];
+            }
+        }
+        return new TileFingerprint(width, height, tiles, columns, rows);
+    }
+
+    /**
+     * @param variant what else decides the response bytes (format, quality, scale...)
+     * @return a quoted entity tag for the HTTP ETag header
+     */
+    public String getETag(String variant) {
+        return "\"" + Long.toHexString(hash) + "-" + Integer.toHexString(variant.hashCode()) + "\"";
+    }
+
+    public boolean sameAs(TileFingerprint other) {
+        return other != null && hash == other.hash && width == other.width && height == other.height;
+    }
+
+    /**
+     * The bounding box of the tiles that differ from the previous frame.
+     *
+     * @return null when nothing changed, the whole frame when the size changed
+     */
+    public Rect changedRegion(TileFingerprint previous) {
+        if (previous.width != width || previous.height != height) {
+            return new Rect(0, 0, width, height);
+        }
+        Rect region = null;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns; c++) {
+                int index = r * columns + c;
+                if (tiles[index] == previous.tiles[index]) {
+                    continue;
+                }
+                Rect tile = new Rect(c * TILE_SIZE, r * TILE_SIZE,
+                        Math.min(width, (c + 1) * TILE_SIZE), Math.min(height, (r + 1) * TILE_SIZE));
+                if (region == null) {
+                    region = tile;
+                } else {
+                    region.union(tile);
+                }
+            }
+        }
+        return region;
+    }
+
+    /**
+     * The last few fingerprints that were sent, by ETag, so a client can ask what changed since
+     * its frame.
+     */
+    public static class History {
+        private static final int MAX_ENTRIES = 8;
+
+        private final Map<String, TileFingerprint> entries = new LinkedHashMap<String, TileFingerprint>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TileFingerprint> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        public synchronized void put(String etag, TileFingerprint fingerprint) {
+            entries.put(etag, fingerprint);
+        }
+
+        public synchronized TileFingerprint get(String etag) {
+            return etag == null ? null : entries.get(etag);
+        }
+    }
+}